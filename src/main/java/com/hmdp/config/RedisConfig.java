@@ -1,65 +1,161 @@
 package com.hmdp.config;
 
 
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.event.DefaultEventPublisherOptions;
+import io.lettuce.core.event.metrics.CommandLatencyEvent;
+import io.lettuce.core.metrics.CommandLatencyId;
+import io.lettuce.core.metrics.CommandMetrics;
+import io.lettuce.core.metrics.DefaultCommandLatencyCollector;
+import io.lettuce.core.metrics.DefaultCommandLatencyCollectorOptions;
 import io.lettuce.core.resource.DefaultClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 自定义 Redis 配置：绕开 Redisson，使用 Lettuce 连接工厂
+ * 线程数、连接方式（共享原生连接/连接池）、pipeline的flush策略和命令延迟统计都可以在 hmdp.redis 下配置
  */
+@Slf4j
 @Configuration
 @EnableConfigurationProperties(RedisProperties.class)
 public class RedisConfig {
 
+    private static final String MODE_POOL = "pool";
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * netty I/O线程数，小于等于0时用CPU核数
+     */
+    @Value("${hmdp.redis.io-threads:0}")
+    private int ioThreads;
+    /**
+     * 计算线程数（事件总线、超时处理等），小于等于0时用CPU核数
+     */
+    @Value("${hmdp.redis.computation-threads:0}")
+    private int computationThreads;
+    /**
+     * shared：非阻塞命令共用一条原生连接，lettuce本身线程安全，命令在一条连接上排队发送；
+     * pool：每次操作从连接池取独占连接，适合有大量阻塞命令（BLPOP、XREAD BLOCK）或事务的场景
+     */
+    @Value("${hmdp.redis.connection-mode:shared}")
+    private String connectionMode;
     /**
-     * 新增：显式创建 DefaultClientResources（文章核心方案）
-     * 1. @Bean(destroyMethod = "shutdown")：容器销毁时自动调用 shutdown()，释放 HashedWheelTimer 等资源
-     * 2. @ConditionalOnMissingBean：避免重复创建（若项目中已有 ClientResources 则复用）
+     * executePipelined时关闭自动flush，攒够这么多条命令再写一次socket，小于等于0时每条命令都flush
+     */
+    @Value("${hmdp.redis.pipeline-flush-size:256}")
+    private int pipelineFlushSize;
+    @Value("${hmdp.redis.latency.enabled:true}")
+    private boolean latencyEnabled;
+    @Value("${hmdp.redis.latency.emit-interval-seconds:60}")
+    private long latencyEmitIntervalSeconds;
+
+    /**
+     * 显式创建 DefaultClientResources，容器销毁时调用 shutdown() 释放线程池和 HashedWheelTimer
      */
     @Bean(destroyMethod = "shutdown")
     public DefaultClientResources lettuceClientResources() {
-        return DefaultClientResources.create();
+        int cores = Runtime.getRuntime().availableProcessors();
+        DefaultClientResources.Builder builder = DefaultClientResources.builder()
+                .ioThreadPoolSize(ioThreads > 0 ? ioThreads : cores)
+                .computationThreadPoolSize(computationThreads > 0 ? computationThreads : cores);
+        if (latencyEnabled && DefaultCommandLatencyCollector.isAvailable()) {
+            //每个周期输出后清零，日志里看到的是这一段时间的延迟分布
+            builder.commandLatencyRecorder(new DefaultCommandLatencyCollector(
+                            DefaultCommandLatencyCollectorOptions.builder()
+                                    .enable()
+                                    .targetUnit(TimeUnit.MICROSECONDS)
+                                    .targetPercentiles(new double[]{50.0, 99.0, 99.9})
+                                    .resetLatenciesAfterEvent(true)
+                                    .build()))
+                    .commandLatencyPublisherOptions(DefaultEventPublisherOptions.builder()
+                            .eventEmitInterval(Duration.ofSeconds(latencyEmitIntervalSeconds))
+                            .build());
+        } else {
+            builder.commandLatencyRecorder(DefaultCommandLatencyCollector.disabled())
+                    .commandLatencyPublisherOptions(DefaultEventPublisherOptions.disabled());
+        }
+        DefaultClientResources resources = builder.build();
+        if (latencyEnabled) {
+            resources.eventBus().get()
+                    .filter(event -> event instanceof CommandLatencyEvent)
+                    .cast(CommandLatencyEvent.class)
+                    .subscribe(RedisConfig::logLatencies);
+        }
+        return resources;
     }
 
     /**
-     * 1. 构建 Lettuce 连接工厂（核心修改：绑定 DefaultClientResources）
+     * 1. 构建 Lettuce 连接工厂，绑定 DefaultClientResources
      */
     @Bean
     public LettuceConnectionFactory lettuceConnectionFactory(
             RedisProperties redisProperties,
-            DefaultClientResources lettuceClientResources // 注入上面创建的资源
+            DefaultClientResources lettuceClientResources
     ) {
-        // 1.1 保留原有：读取 application.yml 中的 Redis 单机配置
+        // 1.1 读取 application.yml 中的 Redis 单机配置
         RedisStandaloneConfiguration config = new RedisStandaloneConfiguration();
         config.setHostName(redisProperties.getHost());
         config.setPort(redisProperties.getPort());
         config.setPassword(redisProperties.getPassword());
         config.setDatabase(redisProperties.getDatabase());
 
-        // 1.2 新增：构建客户端配置，绑定资源（文章核心逻辑）
-        LettuceClientConfiguration clientConfig = LettuceClientConfiguration.builder()
-                .clientResources(lettuceClientResources) // 绑定 Spring 管理的资源，避免隐式创建
-                .commandTimeout(Duration.ofSeconds(5)) // 可选：补充超时配置，增强稳定性
+        // 1.2 客户端配置：超时取 spring.redis.timeout，没配时5秒；开启TCP keepalive，及时发现断开的连接
+        Duration timeout = redisProperties.getTimeout() != null ? redisProperties.getTimeout() : DEFAULT_TIMEOUT;
+        ClientOptions clientOptions = ClientOptions.builder()
+                .autoReconnect(true)
+                .socketOptions(SocketOptions.builder().connectTimeout(timeout).keepAlive(true).build())
+                .timeoutOptions(TimeoutOptions.enabled(timeout))
                 .build();
+        RedisProperties.Pool pool = redisProperties.getLettuce().getPool();
+        boolean pooled = MODE_POOL.equalsIgnoreCase(connectionMode) && pool != null;
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder clientBuilder = pooled
+                ? LettucePoolingClientConfiguration.builder().poolConfig(poolConfig(pool))
+                : LettuceClientConfiguration.builder();
+        clientBuilder.clientResources(lettuceClientResources)
+                .clientOptions(clientOptions)
+                .commandTimeout(timeout);
+        if (redisProperties.getLettuce().getShutdownTimeout() != null) {
+            clientBuilder.shutdownTimeout(redisProperties.getLettuce().getShutdownTimeout());
+        }
+        if (redisProperties.getClientName() != null) {
+            clientBuilder.clientName(redisProperties.getClientName());
+        }
 
-        // 1.3 保留原有：创建连接工厂（传入配置+客户端配置）
-        LettuceConnectionFactory factory = new LettuceConnectionFactory(config, clientConfig);
-        factory.afterPropertiesSet(); // 保持原有初始化逻辑
+        // 1.3 创建连接工厂；连接池模式下不共享原生连接，否则普通命令仍然走共享连接，池子只给阻塞命令和事务用
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(config, clientBuilder.build());
+        factory.setShareNativeConnection(!pooled);
+        if (pipelineFlushSize > 0) {
+            factory.setPipeliningFlushPolicy(LettuceConnection.PipeliningFlushPolicy.buffered(pipelineFlushSize));
+        }
+        factory.afterPropertiesSet();
+        log.info("Redis连接方式：{}，pipeline flush：{}", pooled ? "连接池" : "共享连接",
+                pipelineFlushSize > 0 ? "每" + pipelineFlushSize + "条" : "每条");
         return factory;
     }
 
     /**
-     * 2. 构建 StringRedisTemplate（完全保留原有逻辑，无修改）
+     * 2. 构建 StringRedisTemplate
      */
     @Bean
     public StringRedisTemplate stringRedisTemplate(LettuceConnectionFactory lettuceConnectionFactory) {
@@ -75,4 +171,52 @@ public class RedisConfig {
         template.afterPropertiesSet();
         return template;
     }
+
+    /**
+     * 响应式模板，和 StringRedisTemplate 共用同一个连接工厂（共享连接模式下是同一条原生连接），给 AsyncRedisClient 用
+     */
+    @Bean
+    public ReactiveStringRedisTemplate reactiveStringRedisTemplate(LettuceConnectionFactory lettuceConnectionFactory) {
+        return new ReactiveStringRedisTemplate(lettuceConnectionFactory);
+    }
+
+    /**
+     * 3. redis发布订阅的监听容器，本地状态（售罄标记、本地缓存等）靠它在节点之间广播失效
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(LettuceConnectionFactory lettuceConnectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(lettuceConnectionFactory);
+        return container;
+    }
+
+    /**
+     * spring.redis.lettuce.pool 转成 commons-pool2 的配置
+     */
+    private static GenericObjectPoolConfig<?> poolConfig(RedisProperties.Pool pool) {
+        GenericObjectPoolConfig<?> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(pool.getMaxActive());
+        poolConfig.setMaxIdle(pool.getMaxIdle());
+        poolConfig.setMinIdle(pool.getMinIdle());
+        if (pool.getTimeBetweenEvictionRuns() != null) {
+            poolConfig.setTimeBetweenEvictionRunsMillis(pool.getTimeBetweenEvictionRuns().toMillis());
+        }
+        if (pool.getMaxWait() != null) {
+            poolConfig.setMaxWaitMillis(pool.getMaxWait().toMillis());
+        }
+        return poolConfig;
+    }
+
+    /**
+     * 按命令类型输出这个周期的次数和完成耗时（微秒）
+     */
+    private static void logLatencies(CommandLatencyEvent event) {
+        for (Map.Entry<CommandLatencyId, CommandMetrics> entry : event.getLatencies().entrySet()) {
+            CommandMetrics metrics = entry.getValue();
+            CommandMetrics.CommandLatency completion = metrics.getCompletion();
+            log.info("Redis命令延迟 {} -> {}，次数 {}，min {}，max {}，分位 {}（{}）",
+                    entry.getKey().commandType().name(), entry.getKey().remoteAddress(), metrics.getCount(),
+                    completion.getMin(), completion.getMax(), completion.getPercentiles(), metrics.getTimeUnit());
+        }
+    }
 }
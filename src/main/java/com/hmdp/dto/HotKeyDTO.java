@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKeyDTO {
+    private String key;
+    /**
+     * 滑动窗口内估算的访问次数（已按采样率还原）
+     */
+    private Long count;
+    /**
+     * 是否超过阈值，已固定到本地副本
+     */
+    private Boolean pinned;
+}
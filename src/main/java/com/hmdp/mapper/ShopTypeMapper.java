@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.mapping.ResultSetType;
 
 /**
  * <p>
@@ -13,4 +17,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopTypeMapper extends BaseMapper<ShopType> {
 
+    /**
+     * 流式读取全表，fetchSize为Integer.MIN_VALUE时MySQL驱动逐行返回，不会一次把整张表读进内存
+     * 必须在事务（同一个SqlSession）里遍历完
+     */
+    @Select("SELECT * FROM tb_shop_type")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    Cursor<ShopType> scanAll();
 }
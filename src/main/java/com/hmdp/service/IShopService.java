@@ -15,6 +15,8 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopService extends IService<Shop> {
     Result getShopById(Long id) throws InterruptedException;
 
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
     Result queryShopById(Integer typeId, Integer current, Double x, Double y);
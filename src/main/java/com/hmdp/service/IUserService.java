@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -36,5 +39,12 @@ public interface IUserService extends IService<User> {
 
     Result signCount();
 
+    /**
+     * 批量查询用户摘要（id、昵称、头像），先查redis的user:summary:{id}，未命中的一次查数据库
+     * @param ids
+     * @return 用户id -> 用户摘要，不存在的用户不在结果里
+     */
+    Map<Long, UserDTO> queryUserSummaries(Collection<Long> ids);
+
 
 }
@@ -15,21 +15,32 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedTimeline;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static net.sf.jsqlparser.util.validation.metadata.NamedObject.user;
@@ -52,6 +63,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Autowired
     private IFollowService followService;
+    @Autowired
+    private CacheClient cacheClient;
+    @Autowired
+    private FeedTimeline feedTimeline;
+
+    /**
+     * 关注流每页的blog数
+     */
+    @Value("${hmdp.feed.page-size:2}")
+    private int feedPageSize;
 
     /**
      * blog单体查询
@@ -86,8 +107,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> { buildBlog(blog); isLikedBlog(blog); });
+        // 查询用户，一页的作者一次查完
+        buildBlogs(records);
+        // 点赞状态一次pipeline查完
+        fillLikeStatus(records);
         return Result.ok(records);
 
     }
@@ -114,6 +137,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean update = update().setSql("liked = liked - 1").eq("id", id).update();
             if (update){stringRedisTemplate.opsForZSet().remove(RedisConstants.BLOG_LIKED_KEY + id, userId.toString());}
         }
+        //点赞数变了，删除blog缓存
+        cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
         return Result.ok();
     }
 
@@ -147,19 +172,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //blog里为userId赋值，然后保存到数据库
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
+        //发布时间精确到秒，和数据库里存的一致，关注流翻过redis的范围后从数据库按create_time补查时能对得上
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
 
         boolean save = save(blog);
         if (!save) {return Result.fail("保存用户失败");}
 
-        //保存成功后查询所有粉丝然后推送到所有粉丝的收件箱
-        //查询所有粉丝
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        for (Follow follow : follows) {
-            //获取粉丝id，这是收件箱set的key，然后用add方法推送就行了
-            Long userId = follow.getUserId();
-            String key = "feed:" + userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis() );
-        }
+        //保存成功后写入作者发件箱，粉丝不多的作者由后台线程分页推送到粉丝收件箱，粉丝多的作者由粉丝读时拉取
+        feedTimeline.publish(user.getId(), blog.getId(), FeedTimeline.toScore(blog.getCreateTime()));
         //保存博客方法，返回的是博客id
         return Result.ok(blog.getId());
     }
@@ -170,10 +190,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         //查询收件箱，key为"feed:" + userId;
         //查询命令：ZREVRANGEBYSCORE key Max Min LIMIT offset count
-        String key = "feed:" + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        //关注了大V时再合并大V的发件箱
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedTimeline.read(userId, max, offset, feedPageSize);
         //非空判断
-        if(typedTuples == null || typedTuples.isEmpty()){return Result.ok();}
+        if(typedTuples.isEmpty()){return Result.ok();}
         //解析数据，blogId minTime(时间戳),offset
         ArrayList<Long> ids = new ArrayList<>(typedTuples.size());
 
@@ -191,17 +211,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        //根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-
-        for (Blog blog : blogs) {
-            //查询是否点赞过
-            isLikedBlog(blog);
-            //查询有关用户
-            buildBlog(blog);
-
+        //根据id查询blog，MGET blog缓存和每篇blog的点赞ZSCORE放在同一个pipeline里，未命中的blog一次查数据库
+        byte[] member = userId.toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = new ArrayList<>(ids.size());
+        List<Blog> blogs = cacheClient.queryBatch(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                blogIds -> listByIds(blogIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES,
+                connection -> ids.forEach(id -> connection.zScore(
+                        (RedisConstants.BLOG_LIKED_KEY + id).getBytes(StandardCharsets.UTF_8), member)),
+                scores);
+        Set<Long> likedIds = new HashSet<>();
+        for (int i = 0; i < ids.size() && i < scores.size(); i++) {
+            if (scores.get(i) != null) {
+                likedIds.add(ids.get(i));
+            }
         }
+        blogs.forEach(blog -> blog.setIsLike(likedIds.contains(blog.getId())));
+        //查询有关用户，一次查完
+        buildBlogs(blogs);
         //封装并返回
         ScrollResult result = new ScrollResult();
         result.setList(blogs);
@@ -217,22 +244,66 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     private Blog buildBlog(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setIcon(user.getIcon());
-        blog.setName(user.getNickName());
+        buildBlogs(Collections.singletonList(blog));
         return blog;
     }
 
+    /**
+     * 批量填充作者昵称和头像：一页里的作者id去重后一次查出来，同一个作者的多篇blog只查一次
+     * @param blogs
+     */
+    private void buildBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Map<Long, UserDTO> users = userService.queryUserSummaries(
+                blogs.stream().map(Blog::getUserId).filter(Objects::nonNull).collect(Collectors.toSet()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            //作者已经不存在时不填
+            if (user != null) {
+                blog.setIcon(user.getIcon());
+                blog.setName(user.getNickName());
+            }
+        }
+    }
+
 
     /**
      * 查询是否点过赞并将islike字段赋值
      * @param blog
      */
     private void isLikedBlog(Blog blog) {
-        Long userId = UserHolder.getUser().getId();
+        UserDTO user = UserHolder.getUser();
+        //未登录（热门博客不需要登录）一律显示未点赞
+        if (user == null) {
+            blog.setIsLike(false);
+            return;
+        }
         Long id = blog.getId();
-        Double isLiked = stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + id,userId.toString());
+        Double isLiked = stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + id, user.getId().toString());
         blog.setIsLike(isLiked != null);
     }
+
+    /**
+     * 批量查询当前用户是否点过赞：每篇blog一条ZSCORE，用pipeline一次发出去，一页只有一次redis往返
+     * @param blogs
+     */
+    private void fillLikeStatus(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            blogs.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((RedisConstants.BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
 }
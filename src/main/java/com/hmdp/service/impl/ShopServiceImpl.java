@@ -13,6 +13,7 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,6 +32,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -49,9 +52,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
 
     @Override
     public Result getShopById(Long id) throws InterruptedException {
+        //布隆过滤器判断一定不存在的id，直接返回，不查redis也不查数据库
+        if (!shopBloomFilter.mightContain(id)) {
+            return Result.fail("店铺不存在");
+        }
        //缓存穿透
 //     queryWithPassThrow(id);
 
@@ -62,7 +72,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //封装好的缓存穿透
 //        Shop shop = cacheClient.queryWithPassThrow(RedisConstants.CACHE_SHOP_KEY,id,Shop.class,this::getById,RedisConstants.CACHE_SHOP_TTL,TimeUnit.MINUTES);
         //封装好的逻辑过期
-        Shop shop = cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY,RedisConstants.LOCK_SHOP_KEY,id,Shop.class,this::getById,RedisConstants.LOGIN_CODE_TTL,TimeUnit.SECONDS);
+        Shop shop = cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY,RedisConstants.LOCK_SHOP_KEY,id,Shop.class,this::getById,RedisConstants.CACHE_SHOP_LOGIC_TTL,TimeUnit.MINUTES);
 
 
         if (shop == null) {
@@ -71,17 +81,26 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        //加入布隆过滤器，同时通知其他节点
+        shopBloomFilter.add(shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result updateShop(Shop shop) {
-        //先改数据库，再删除缓存
+        //先改数据库，提交后再删除缓存并通知各节点删除本地缓存
+        //tb_shop上的触发器同时写入tb_cache_outbox，CacheOutboxRelay开启时会重新写入缓存，两边都是幂等的；关闭时靠这里的删除
         Long id = shop.getId();
         if (id == null) {
            return Result.fail("店铺id不存在");
         }
         updateById(shop);
-        //删除缓存
-        String key = RedisConstants.CACHE_SHOP_KEY+id;
-        stringRedisTemplate.delete(key);
+        cacheClient.deleteAfterCommit(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -131,9 +150,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-// 5. 根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+// 5. 根据id查询Shop，批量查缓存，未命中的一次查数据库
+        List<Shop> shops = cacheClient.queryBatchWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY, ids, Shop.class,
+                this::listShopMapByIds, RedisConstants.CACHE_SHOP_LOGIC_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
@@ -141,6 +160,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shops);
     }
 
+    private Map<Long, Shop> listShopMapByIds(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+
     /**
      * 解决缓存穿透
      */
@@ -323,12 +346,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public void saveShopToRedisWithExpire(Long id, Long expireSeconds) throws InterruptedException {
         Thread.sleep(200);
         Shop shop = getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        String ShopJsonStr = JSONUtil.toJsonStr(redisData);
-        //真实过期时间默认永久有效，只看逻辑过期时间
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,ShopJsonStr);
+        //真实过期时间默认永久有效，只看逻辑过期时间，编码方式和CacheClient读取时一致
+        cacheClient.setWithLogicExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -1,14 +1,12 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -24,10 +22,10 @@ import java.util.List;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClient cacheClient;
 
-    public ShopTypeServiceImpl(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public ShopTypeServiceImpl(CacheClient cacheClient) {
+        this.cacheClient = cacheClient;
     }
 
     /**
@@ -35,24 +33,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
      */
     @Override
     public Result getTypeList() {
-
-            String key = RedisConstants.CACHE_SHOP_TYPES_KEY;
-
-            String shopJson = stringRedisTemplate.opsForValue().get(key);
-            //存在,直接返回
-            if (StrUtil.isNotBlank(shopJson)) {
-                //转成java对象的列表
-                List<ShopType> typeList = JSONUtil.toList(shopJson, ShopType.class);
-
-                return Result.ok(typeList);
-            }
-            //不存在，查询数据库
-            List<ShopType> typeList = query().orderByAsc("sort").list();
-
-            //将数据库内容存入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(typeList));
-            //将数据库内容返回给前端
-            return Result.ok(typeList);
-
-        }
+        //不存在时查询数据库，存入redis，编码方式由CacheClient决定
+        List<ShopType> typeList = cacheClient.queryList(RedisConstants.CACHE_SHOP_TYPES_KEY, ShopType.class,
+                () -> query().orderByAsc("sort").list());
+        return Result.ok(typeList);
+    }
 }
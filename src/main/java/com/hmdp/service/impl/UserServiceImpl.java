@@ -4,6 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -17,6 +18,8 @@ import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
@@ -24,7 +27,11 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +54,13 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * user:summary:{id} 这个hash里的字段
+     */
+    private static final String SUMMARY_ICON = "icon";
+    private static final String SUMMARY_NICK_NAME = "nickName";
+    private static final List<Object> SUMMARY_FIELDS = Arrays.asList(SUMMARY_ICON, SUMMARY_NICK_NAME);
+
     /**
      * 发送短信验证码
      */
@@ -178,6 +192,68 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    /**
+     * 批量查询用户摘要：redis里每个用户一个hash（icon、nickName），pipeline一次HMGET全部id，
+     * 未命中的一次listByIds查数据库，再用pipeline写回redis
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserSummaries(Collection<Long> ids) {
+        List<Long> userIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Long, UserDTO> summaries = new HashMap<>(userIds.size());
+        if (userIds.isEmpty()) {
+            return summaries;
+        }
+        List<Object> cached = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (Long id : userIds) {
+                    operations.opsForHash().multiGet(RedisConstants.USER_SUMMARY_KEY + id, SUMMARY_FIELDS);
+                }
+                return null;
+            }
+        });
+        List<Long> misses = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            List<?> fields = (List<?>) cached.get(i);
+            //昵称一定有值，为null说明hash不存在
+            if (fields == null || fields.get(1) == null) {
+                misses.add(userIds.get(i));
+                continue;
+            }
+            UserDTO userDTO = new UserDTO();
+            userDTO.setId(userIds.get(i));
+            userDTO.setIcon((String) fields.get(0));
+            userDTO.setNickName((String) fields.get(1));
+            summaries.put(userDTO.getId(), userDTO);
+        }
+        if (misses.isEmpty()) {
+            return summaries;
+        }
+        List<UserDTO> loaded = new ArrayList<>(misses.size());
+        for (User user : listByIds(misses)) {
+            UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+            summaries.put(userDTO.getId(), userDTO);
+            loaded.add(userDTO);
+        }
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (UserDTO userDTO : loaded) {
+                    String key = RedisConstants.USER_SUMMARY_KEY + userDTO.getId();
+                    Map<String, String> hash = new HashMap<>(4);
+                    hash.put(SUMMARY_ICON, StrUtil.nullToEmpty(userDTO.getIcon()));
+                    hash.put(SUMMARY_NICK_NAME, StrUtil.nullToEmpty(userDTO.getNickName()));
+                    operations.opsForHash().putAll(key, hash);
+                    operations.expire(key, RedisConstants.USER_SUMMARY_TTL, TimeUnit.MINUTES);
+                }
+                return null;
+            }
+        });
+        return summaries;
+    }
+
     private User creatUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
@@ -7,24 +7,35 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWoker;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,6 +55,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWoker redisIdWoker;
     @Autowired
     private RedissonClient redissonClient;
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
     // 注入自身的代理对象
     @Autowired
     private VoucherOrderServiceImpl thisProxy;
@@ -52,42 +67,89 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
     @Override
     public Result secKillVoucher(Long voucherId) {
+        //本地已经标记售罄，不再申请订单id，也不再执行lua脚本
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWoker.nexId("order");
+        //热点券走分片库存
+        int shards = seckillStockShards.shardCount(voucherId);
+        if (shards > 1) {
+            return secKillShardedVoucher(voucherId, userId, shards);
+        }
+        //号段模式：订单序列号由lua脚本在准入成功后自增，这里只准备时间戳和序列号的key
+        //雪花模式：订单id在本地生成，直接传给脚本，热路径上不再有INCR
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = redisIdWoker.timeStamp(now);
+        long orderId = redisIdWoker.isLocal() ? redisIdWoker.nexId("order") : 0;
         //运行lua脚本，订单信息写入消费队列的代码也在lua脚本里
-        Long result = stringRedisTemplate.execute(
+        List<Long> result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
+                voucherId.toString(), userId.toString(),
+                redisIdWoker.sequenceKey("order", now), String.valueOf(timeStamp),
+                orderId == 0 ? "" : String.valueOf(orderId)
         );
         //判断是否为0
         //不为零，没有购买资格
-        int r = result.intValue();
+        int r = result.get(0).intValue();
+        if (r == 1) {
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0 ) {
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
         //返回订单id
+        return Result.ok(orderId != 0 ? orderId : RedisIdWoker.compose(timeStamp, result.get(1)));
+    }
+
+    /**
+     * 分片库存的秒杀，各分片可能落在集群的不同槽位，脚本里不能再写stream.orders，准入成功后单独XADD
+     */
+    private Result secKillShardedVoucher(Long voucherId, Long userId, int shards) {
+        int r = seckillStockShards.tryAcquire(voucherId, userId, shards);
+        if (r == 1) {
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+        }
+        if (r != 0) {
+            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        }
+        //准入成功才申请订单id
+        long orderId = redisIdWoker.nexId("order");
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", userId.toString());
+        message.put("voucherId", voucherId.toString());
+        message.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(STREAM_KEY, message);
         return Result.ok(orderId);
     }
 
     private static final String STREAM_KEY = "stream.orders"; // Stream 键
     private static final String CONSUMER_GROUP = "seckill-order-group"; // 消费者组
-    private static final String CONSUMER_NAME = "seckill-consumer-1"; // 消费者
+    private static final String CONSUMER_PREFIX = "seckill-consumer-"; // 消费者名前缀，后面拼上编号
 
+    /**
+     * 消费者数量，每个消费者一个线程，组内的消费者之间由redis负责分摊消息
+     */
+    @Value("${hmdp.seckill.consumer-count:4}")
+    private int consumerCount;
+    /**
+     * 每次XREADGROUP最多读取的消息数量，也是一次批量入库的最大订单数
+     */
+    @Value("${hmdp.seckill.batch-size:100}")
+    private int batchSize;
 
-    private final ExecutorService seckillOrderExecutor = Executors.newSingleThreadExecutor(
-            r -> new Thread(r, "Seckill-Stream-Consumer-Pool") // 自定义线程名称，便于调试
-    );
+    private ExecutorService seckillOrderExecutor;
 
 
     @PostConstruct
@@ -99,151 +161,275 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         } catch (Exception e) {
             log.info("消费者组 {} 已存在", CONSUMER_GROUP);
         }
-        //开始循环，从消息队列中读取信息
+        //每个消费者一个线程，线程名和消费者名一一对应，便于调试
+        AtomicInteger index = new AtomicInteger(1);
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount,
+                r -> new Thread(r, "Seckill-Stream-Consumer-" + index.getAndIncrement()));
+        for (int i = 1; i <= consumerCount; i++) {
+            String consumerName = CONSUMER_PREFIX + i;
+            seckillOrderExecutor.submit(() -> consumeOrders(consumerName));
+        }
+    }
+
+    @PreDestroy
+    public void stopStreamConsumer() {
+        seckillOrderExecutor.shutdownNow();
+    }
 
-        // 2. 向线程池提交消费任务
-        seckillOrderExecutor.submit(() -> {
-            while (true) {
+    /**
+     * 单个消费者的循环：批量读取 -> 一个事务批量入库 -> 一条XACK批量确认
+     */
+    private void consumeOrders(String consumerName) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // 1. 读取 Stream 消息（XREADGROUP COUNT n BLOCK 1000）
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(CONSUMER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(1)), // 阻塞1秒
+                        StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed())
+                );
+                // 2. 无消息则继续循环
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                // 3. 解析消息字段
+                List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+                RecordId[] recordIds = new RecordId[records.size()];
+                for (int i = 0; i < records.size(); i++) {
+                    MapRecord<String, Object, Object> record = records.get(i);
+                    voucherOrders.add(toVoucherOrder(record.getValue()));
+                    recordIds[i] = record.getId();
+                }
+                // 4. 一个事务处理整批订单，仍然注意获取代理对象防止事务失效
+                thisProxy.handleVoucherOrderBatch(voucherOrders);
+                // 5. 一条XACK确认整批消息
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, recordIds);
+                log.debug("{} 处理完成并确认 {} 条秒杀订单", consumerName, records.size());
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                log.error("处理Stream消息异常", e);
+                //处理失败的消息留在pending-list里，由recoverPendingOrders重新认领，超过投递次数进死信队列
                 try {
-                    // 3. 读取 Stream 消息（XREADGROUP）
-                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
-                            Consumer.from(CONSUMER_GROUP, CONSUMER_NAME),
-                            StreamReadOptions.empty().block(Duration.ofSeconds(1)), // 阻塞1秒
-                            StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed())
-                    );
-//                    对比代码
-//                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-//                            Consumer.from("g1", "c1"),
-//                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-//                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-//                    );
-
-                    // 4. 处理消息（无消息则继续循环）
-                    if (records == null || records.isEmpty()) {
-                        continue;
-                    }
-
-                    // 5. 遍历处理每条消息
-                    for (MapRecord<String, Object, Object> record : records) {
-                        log.info("接收到秒杀订单消息：{}", record);
-                        Map<Object, Object> value = record.getValue();
-
-                        // 6. 解析消息字段
-                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                        //仍然注意获取代理对象防止事务失效
-                        thisProxy.handleVoucherOrder(voucherOrder);
-
-//                        对比代码
-//                        MapRecord<String, Object, Object> record = list.get(0);
-//                        Map<Object, Object> values = record.getValue();
-//                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                        // 8. 确认消息已处理（XACK）
-                        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, record.getId());
-                        log.info("订单 {} 处理完成并确认", voucherOrder.getVoucherId());
-                    }
-                } catch (Exception e) {
-                    log.error("处理Stream消息异常", e);
-                    //不需要再循环处理消息处理失败的异常了，因为ReadOffset.lastConsumed()能够自动读取
-                    try {
-                        Thread.sleep(1000); // 异常时休眠1秒，避免循环过快
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                    }
+                    Thread.sleep(1000); // 异常时休眠1秒，避免循环过快
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
                 }
+            }
+        }
+    }
+
+    private static final String DLQ_KEY = "stream.orders.dlq"; // 死信队列
+    private static final String RECOVERY_CONSUMER = "seckill-recovery"; // 认领pending消息的消费者
+
+    /**
+     * pending-list扫描间隔
+     */
+    @Value("${hmdp.seckill.recovery.interval-seconds:10}")
+    private long recoveryIntervalSeconds;
+    /**
+     * 消息投递后超过这个时间还没确认，才认为原消费者已经处理失败
+     */
+    @Value("${hmdp.seckill.recovery.min-idle-seconds:60}")
+    private long recoveryMinIdleSeconds;
+    /**
+     * 最大投递次数，达到后转入死信队列，不再重试
+     */
+    @Value("${hmdp.seckill.recovery.max-deliveries:3}")
+    private long maxDeliveries;
+    /**
+     * 每次XPENDING扫描的消息数量
+     */
+    @Value("${hmdp.seckill.recovery.scan-count:100}")
+    private int recoveryScanCount;
+    /**
+     * 死信队列的近似最大长度
+     */
+    @Value("${hmdp.seckill.recovery.dlq-max-len:100000}")
+    private long dlqMaxLen;
+
+    private final ScheduledExecutorService seckillRecoveryExecutor = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "Seckill-Stream-Recovery")
+    );
 
-        //解析信息并处理
-        //最后确认信息处理完毕
-    }});
+    @PostConstruct
+    public void startPendingRecovery() {
+        seckillRecoveryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                recoverPendingOrders();
+                trimStream();
+            } catch (Exception e) {
+                log.error("秒杀订单pending-list恢复异常", e);
+            }
+        }, recoveryIntervalSeconds, recoveryIntervalSeconds, TimeUnit.SECONDS);
     }
-    //TODO 逻辑仍然可以优化，首先是出现异常不能无限循环试错，应加入死信队列机制防止无限死循环。其次存入消息队列的消息会永久保存到消息队列中，应该加入定时清理逻辑
-
-
-//    @Override
-//    public Result secKillVoucher(Long voucherId) {
-//        Long userId = UserHolder.getUser().getId();
-//        //运行lua脚本
-//        Long result = stringRedisTemplate.execute(
-//                SECKILL_SCRIPT,
-//                Collections.emptyList(),
-//                voucherId.toString(), userId.toString()
-//        );
-//        //判断是否为0
-//        //不为零，没有购买资格
-//        int r = result.intValue();
-//        if (r != 0) {
-//            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
-//        }
-//        //为零，可以购买，将购买信心保存到阻塞队列
-//        // 构造订单对象
-//        long orderId = redisIdWoker.nexId("order");
-//        VoucherOrder order = new VoucherOrder();
-//        order.setId(orderId);
-//        order.setUserId(userId);
-//        order.setVoucherId(voucherId);
-//        // 订单入队（简单入队，不设超时）
-//        try {
-//            SECKILL_ORDER_QUEUE.put(order); // 队列满了就阻塞，初学者易理解
-//        } catch (InterruptedException e) {
-//            return Result.fail("下单失败");
-//        }
-//        //返回订单id
-//        return Result.ok(orderId);
-//    }
-//
-//
-//    // 简单有界阻塞队列：容量5000，直接存订单实体，无额外配置
-//    private static final BlockingQueue<VoucherOrder> SECKILL_ORDER_QUEUE = new LinkedBlockingQueue<>(5000);
-//    // 最简单线程池：固定1个线程，默认配置，不用复杂参数
-//    private static final ExecutorService SECKILL_EXECUTOR = Executors.newFixedThreadPool(1);
-//
-//    // 应用启动时自动启动线程池消费队列
-//    @PostConstruct
-//    public void initConsumer() {
-//        // 线程池执行消费任务，循环拿队列数据
-//        //内部匿名类启动队列
-//        SECKILL_EXECUTOR.execute(() -> {
-//            while (true) {
-//                try {
-//                    // 阻塞获取订单：队列空就等，有数据就取
-//                    VoucherOrder voucherOrder = SECKILL_ORDER_QUEUE.take();
-//                    // 处理订单（扣库存+保存）
-//                    handleVoucherOrder(voucherOrder);
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
-//            }
-//        });
-//    }
 
+    @PreDestroy
+    public void stopPendingRecovery() {
+        seckillRecoveryExecutor.shutdownNow();
+    }
 
-    @Transactional
-    public void handleVoucherOrder(VoucherOrder voucherOrder) {
+    /**
+     * 扫描pending-list（XPENDING），把空闲过久的消息XCLAIM到恢复消费者名下逐条重试，投递次数超限的转入死信队列
+     */
+    private void recoverPendingOrders() {
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(STREAM_KEY, CONSUMER_GROUP, Range.unbounded(), recoveryScanCount);
+        Duration minIdle = Duration.ofSeconds(recoveryMinIdleSeconds);
+        Map<RecordId, Long> deliveryCounts = new HashMap<>();
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                deliveryCounts.put(pendingMessage.getId(), pendingMessage.getTotalDeliveryCount());
+            }
+        }
+        if (deliveryCounts.isEmpty()) {
+            return;
+        }
+        // 1. 一条XCLAIM认领所有空闲消息，min-idle保证多个节点不会同时认领同一条
+        RecordId[] staleIds = deliveryCounts.keySet().toArray(new RecordId[0]);
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                        CONSUMER_GROUP, RECOVERY_CONSUMER, minIdle, staleIds));
+        if (claimed == null) {
+            return;
+        }
+        StringRedisSerializer serializer = StringRedisSerializer.UTF_8;
+        Set<RecordId> remaining = new HashSet<>(deliveryCounts.keySet());
+        for (ByteRecord byteRecord : claimed) {
+            MapRecord<String, String, String> record = byteRecord.deserialize(serializer, serializer, serializer);
+            remaining.remove(record.getId());
+            long deliveries = deliveryCounts.get(record.getId());
+            // 2. 投递次数超限，转入死信队列后确认，不再重试
+            if (deliveries >= maxDeliveries) {
+                moveToDeadLetter(record, deliveries);
+                continue;
+            }
+            // 3. 逐条重试，一条坏消息不会拖累其他消息
+            try {
+                thisProxy.handleVoucherOrderBatch(Collections.singletonList(toVoucherOrder(record.getValue())));
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, record.getId());
+            } catch (Exception e) {
+                log.error("秒杀订单消息 {} 第 {} 次重试失败", record.getId(), deliveries, e);
+            }
+        }
+        // 4. XCLAIM没返回的：可能是被别的节点先认领了，也可能是消息体已经被删掉；
+        //    只有XRANGE确认消息体不在了才确认掉，避免pending-list越积越多，别的节点认领的留给它处理
+        for (RecordId recordId : remaining) {
+            if (stringRedisTemplate.opsForStream().range(STREAM_KEY, Range.closed(recordId.getValue(), recordId.getValue())).isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, recordId);
+                log.warn("秒杀订单消息 {} 的消息体已不存在，确认并移出pending-list", recordId);
+            }
+        }
+    }
 
-        //直接使用voucherOrder来获取订单id和用户id
-        Long id = voucherOrder.getId();
-        Long voucherId = voucherOrder.getVoucherId();
+    private void moveToDeadLetter(MapRecord<String, String, String> record, long deliveries) {
+        Map<String, String> value = new HashMap<>(record.getValue());
+        value.put("sourceId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveries));
+        stringRedisTemplate.opsForStream().add(DLQ_KEY, value);
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, record.getId());
+        stringRedisTemplate.opsForStream().trim(DLQ_KEY, dlqMaxLen, true);
+        log.error("秒杀订单消息 {} 已投递 {} 次仍然失败，转入死信队列 {}", record.getId(), deliveries, DLQ_KEY);
+    }
 
-        //继续进行一人一单的数据库校验
-        Integer count = query().eq("user_id", id).eq("voucher_id", voucherId).count();
-        if (count > 0) {
+    /**
+     * 按MINID裁剪stream.orders：比最早的未确认消息和组内最后投递的消息都旧的记录已经确认完毕，可以删除
+     */
+    private void trimStream() {
+        String lastDeliveredId = stringRedisTemplate.opsForStream().groups(STREAM_KEY).stream()
+                .filter(group -> CONSUMER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        if (lastDeliveredId == null) {
             return;
         }
+        RecordId minId = RecordId.of(lastDeliveredId);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_KEY, CONSUMER_GROUP);
+        if (summary != null && summary.getTotalPendingMessages() > 0 && isBefore(summary.minRecordId(), minId)) {
+            minId = summary.minRecordId();
+        }
+        // XTRIM key MINID ~ id，近似裁剪让redis按整个宏节点删除，开销更小
+        String trimId = minId.getValue();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                STREAM_KEY.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), trimId.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        //核心逻辑，扣减库存
-        boolean update = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId)
-                .gt("stock", 0)//加入乐观锁，在操作数据库的时候再次查看库存是否大于零，由于这一条sql的查询是原子操作，不存在其他线程干扰的问题，即完成了乐观锁.
-                .update();//注意，一定去掉类上面的事务注解，必须保证锁必须把所有事务包含进去，不能释放了锁以后事务还没完。
+    private static boolean isBefore(RecordId a, RecordId b) {
+        return a.getTimestamp() < b.getTimestamp()
+                || (a.getTimestamp().equals(b.getTimestamp()) && a.getSequence() < b.getSequence());
+    }
 
-        if (!update) {
+    private static VoucherOrder toVoucherOrder(Map<?, ?> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        //lua脚本写入的是时间戳和序列号，在这里拼成订单id，和返回给用户的id一致
+        if (voucherOrder.getId() == null && value.get("ts") != null && value.get("seq") != null) {
+            voucherOrder.setId(RedisIdWoker.compose(
+                    Long.parseLong(value.get("ts").toString()), Long.parseLong(value.get("seq").toString())));
+        }
+        return voucherOrder;
+    }
+
+    /**
+     * 批量处理秒杀订单：一人一单校验一次查询，每张券一条扣减库存的SQL，所有订单一条多值INSERT
+     * @param voucherOrders 同一批从Stream读出的订单
+     */
+    @Transactional
+    public void handleVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        //批内去重，key是用户id:优惠券id，redis里已经做过一人一单，这里防的是消息重复投递
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size() * 2);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        //继续进行一人一单的数据库校验，整批只查一次
+        Set<Long> userIds = orderMap.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orderMap.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existOrders = query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        for (VoucherOrder existOrder : existOrders) {
+            orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId());
+        }
+        if (orderMap.isEmpty()) {
             return;
         }
 
-        //核心逻辑，订单保存到数据库
-        save(voucherOrder);
+        //按优惠券分组，每张券只执行一次扣减库存
+        Map<Long, List<VoucherOrder>> voucherGroups = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> saveOrders = new ArrayList<>(orderMap.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : voucherGroups.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            //乐观锁从stock > 0变成stock >= n，一条sql扣掉整组的库存
+            boolean update = seckillVoucherService.update()
+                    .setSql("stock = stock - " + orders.size())
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", orders.size())
+                    .update();
+            if (update) {
+                saveOrders.addAll(orders);
+                continue;
+            }
+            //数据库库存不够整组扣减（正常情况下redis已经挡住了），退化成逐条扣减，能扣几条算几条
+            log.warn("优惠券 {} 数据库库存不足以扣减 {} 件，退化为逐条扣减", voucherId, orders.size());
+            for (VoucherOrder order : orders) {
+                boolean single = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherId)
+                        .gt("stock", 0)
+                        .update();
+                if (!single) {
+                    break;
+                }
+                saveOrders.add(order);
+            }
+        }
 
+        //核心逻辑，订单一条多值INSERT保存到数据库
+        if (!saveOrders.isEmpty()) {
+            getBaseMapper().insertBatch(saveOrders);
+        }
     }
 
 
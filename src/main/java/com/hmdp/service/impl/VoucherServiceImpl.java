@@ -8,12 +8,16 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -33,6 +37,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
 
 
     @Override
@@ -62,8 +70,59 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
+        //热点券开启分片库存，库存拆到多个key上
+        Integer stockShards = voucher.getStockShards();
+        if (stockShards != null && stockShards > 1) {
+            seckillStockShards.initStock(voucher.getId(), voucher.getStock(), stockShards);
+            return;
+        }
         //将秒杀券信息存入redis，key是秒杀券id，值是秒杀券库存
       stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY+voucher.getId(), voucher.getStock()+"");
 
     }
+
+    /**
+     * 补充秒杀券库存：数据库和redis库存一起加，然后清除各节点的本地售罄标记
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        boolean update = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!update) {
+            return Result.fail("秒杀券不存在");
+        }
+        //redis库存和售罄标记等事务提交后再改，事务回滚时不会多出数据库里没有的库存
+        afterCommit(() -> {
+            int shards = seckillStockShards.shardCount(voucherId);
+            if (shards > 1) {
+                seckillStockShards.addStock(voucherId, count, shards);
+            } else {
+                stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+            }
+            seckillSoldOutRegistry.clear(voucherId);
+        });
+        return Result.ok();
+    }
+
+    /**
+     * 在当前事务提交后执行，没有事务时立即执行
+     */
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
 }
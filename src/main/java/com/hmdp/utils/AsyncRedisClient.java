@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 基于ReactiveStringRedisTemplate的异步redis访问，命令返回CompletableFuture
+ * 互相独立的查询先全部发出去，再统一join，lettuce在同一条连接上连续写出命令，
+ * n次查询的等待时间接近一次往返，tomcat线程不再依次阻塞在每一次网络往返上
+ * 目前只给RefreshTokenInterceptor用：查登录用户和刷新有效期一起发出去，只需要的命令才放在这里
+ */
+@Component
+public class AsyncRedisClient {
+
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    /**
+     * join等待结果的最长时间
+     */
+    @Value("${hmdp.redis.async.join-timeout-millis:3000}")
+    private long joinTimeoutMillis;
+
+    public AsyncRedisClient(ReactiveStringRedisTemplate reactiveStringRedisTemplate) {
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+    }
+
+    /**
+     * key不存在时返回空map
+     */
+    public CompletableFuture<Map<String, String>> hGetAll(String key) {
+        return reactiveStringRedisTemplate.<String, String>opsForHash().entries(key)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .toFuture();
+    }
+
+    public CompletableFuture<Boolean> expire(String key, long timeout, TimeUnit unit) {
+        return reactiveStringRedisTemplate.expire(key, Duration.ofMillis(unit.toMillis(timeout))).toFuture();
+    }
+
+    /**
+     * 等待单个结果，超时抛QueryTimeoutException，redis异常原样抛出
+     */
+    public <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get(joinTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new QueryTimeoutException("等待redis结果超时", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待redis结果被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -1,40 +1,94 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
+    private final LocalCache localCache;
+    /**
+     * 缓存值的编解码，默认Hutool JSON，可切换成msgpack
+     */
+    private final CacheCodec codec;
+    /**
+     * 热点key的提前刷新，缓存重建也用它的有界线程池
+     */
+    private final CacheRefreshAhead refreshAhead;
+    private final HotKeyDetector hotKeyDetector;
+    /**
+     * 本节点内同一个key的并发加载合并成一次，放在redis分布式锁前面
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 逻辑过期的缓存存成hash，e是逻辑过期时间（毫秒），v是版本号，d是编码后的数据
+     * 判断是否过期不用解析数据，数据只在返回时解析一次
+     */
+    private static final byte[] FIELD_EXPIRE = "e".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FIELD_DATA = "d".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FIELD_VERSION = "v".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_VERSION = new byte[0];
+    private static final long LOGIC_HASH = 1L;
+    private static final long LOGIC_LEGACY = 2L;
+    private static final long STATE_FRESH = 0L;
+    private static final long STATE_REBUILD = 1L;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private static final DefaultRedisScript<List> LOGIC_GET_SCRIPT;
+    private static final DefaultRedisScript<Long> LOGIC_SET_SCRIPT;
+
+    static {
+        LOGIC_GET_SCRIPT = new DefaultRedisScript<>();
+        LOGIC_GET_SCRIPT.setLocation(new ClassPathResource("cache_logic_get.lua"));
+        LOGIC_GET_SCRIPT.setResultType(List.class);
+        LOGIC_SET_SCRIPT = new DefaultRedisScript<>();
+        LOGIC_SET_SCRIPT.setLocation(new ClassPathResource("cache_logic_set.lua"));
+        LOGIC_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache, CacheCodec codec,
+                       CacheRefreshAhead refreshAhead, HotKeyDetector hotKeyDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.codec = codec;
+        this.refreshAhead = refreshAhead;
+        this.hotKeyDetector = hotKeyDetector;
     }
 
     /**
      * 方法一，不带逻辑过期的存数据
-     * 参数：键，值，过期时间,时间单位
+     * 参数：键，值，过期时间,时间单位，过期时间为null时永久有效
      * @param key
      * @param value
      * @param time
      * @param timeUnit
      */
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,timeUnit);
+        rawSet(key, codec.encode(value), time, timeUnit);
+        localCache.invalidate(key);
     }
 
     /**
@@ -46,12 +100,65 @@ public class CacheClient {
      * @param timeUnit
      */
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit timeUnit) {
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setWithLogicExpire(key, value, time, timeUnit, NO_VERSION);
+    }
+
+    /**
+     * 逻辑过期时间和数据写进hash，版本号加一
+     * @param expectedVersion 重建时传入读到的版本号，期间已经被别人写过就放弃；不校验传空数组
+     * @return 写入后的逻辑过期时间（毫秒），没有写入返回0
+     */
+    private long setWithLogicExpire(String key, Object value, Long time, TimeUnit timeUnit, byte[] expectedVersion) {
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
+        Long version = stringRedisTemplate.execute(LOGIC_SET_SCRIPT, RedisSerializer.byteArray(), LONG_RESULT,
+                Collections.singletonList(key), raw(String.valueOf(expireAt)), codec.encode(value), expectedVersion);
+        localCache.invalidate(key);
+        return version != null && version > 0 ? expireAt : 0;
+    }
+
+    /**
+     * 删除缓存，同时通知所有节点删除本地缓存
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 在当前事务提交后删除缓存，没有事务时立即删除；事务回滚时不删
+     */
+    public void deleteAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                delete(key);
+            }
+        });
+    }
+
+    /**
+     * 批量删除缓存，一条DEL，本地缓存的失效通知走pipeline
+     * @param keys
+     */
+    public void deleteBatch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        localCache.invalidateAll(keys);
+    }
+
+    /**
+     * 只通知各节点删除本地缓存，redis里的值由调用方自己写好
+     * @param keys
+     */
+    public void invalidateLocal(Collection<String> keys) {
+        localCache.invalidateAll(keys);
     }
 
     /**
@@ -69,18 +176,29 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrow(String keyPrefix, ID id, Class<R> clazz, Function<ID,R> dbFallBack,Long time
     ,TimeUnit timeUnit) {
-        //首先根据id查询redis
+        //首先根据id查询本地缓存，再查redis
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        R local = localCache.get(keyPrefix, key, clazz);
+        if (local != null) {
+            return local;
+        }
+        //本地缓存没有，同一个key只让一个线程去查redis和数据库
+        return singleFlight.execute(key, () -> loadWithPassThrow(keyPrefix, key, id, clazz, dbFallBack, time, timeUnit));
+    }
 
-        String json = stringRedisTemplate.opsForValue().get(key);
+    private <R,ID> R loadWithPassThrow(String keyPrefix, String key, ID id, Class<R> clazz, Function<ID,R> dbFallBack,
+                                       Long time, TimeUnit timeUnit) {
+        byte[] bytes = rawGet(key);
         //存在,且不是空值，直接返回
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             //转成java对象
-            R r = JSONUtil.toBean(json, clazz);
+            R r = codec.decode(bytes, clazz);
+            localCache.put(keyPrefix, key, r);
             return r;
         }
         //存在，且是空值(不为空不为null就是空值了)
-        if(json != null){
+        if(bytes != null){
             return null;
         }
         //不存在，查询数据库
@@ -93,8 +211,8 @@ public class CacheClient {
             return null;
         }
         //存在，将数据库内容存入redis
-        String jsonStr = JSONUtil.toJsonStr(r);
-        stringRedisTemplate.opsForValue().set(key,jsonStr,time, timeUnit);
+        rawSet(key, codec.encode(r), time, timeUnit);
+        localCache.put(keyPrefix, key, r);
 
         //存在，将数据库内容返回给前端
         return r;
@@ -103,73 +221,406 @@ public class CacheClient {
 
 
     /**
-     * 新建线程池
+     * 整个列表作为一个值缓存，不设置过期时间，数据变化时由调用方删除key
+     * @param key
+     * @param elementClass
+     * @param dbFallBack
+     * @return
+     * @param <R>
+     */
+    public <R> List<R> queryList(String key, Class<R> elementClass, Supplier<List<R>> dbFallBack) {
+        byte[] bytes = rawGet(key);
+        if (bytes != null && bytes.length > 0) {
+            return codec.decodeList(bytes, elementClass);
+        }
+        List<R> list = dbFallBack.get();
+        rawSet(key, codec.encode(list), null, null);
+        return list;
+    }
+
+    /**
+     * 批量查询，对应queryWithPassThrow
+     * 一次MGET查出全部key，未命中的id一次性交给dbFallBack查数据库，再用pipeline批量写回redis（查不到的写空值防穿透）
+     * 返回结果按传入id的顺序排列，不存在的id不出现在结果里
+     * @param keyPrefix
+     * @param ids
+     * @param clazz
+     * @param dbFallBack 传入未命中的id，返回 id -> 对象
+     * @param time
+     * @param timeUnit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+                                     Function<Collection<ID>, Map<ID,R>> dbFallBack, Long time, TimeUnit timeUnit) {
+        return queryBatch(keyPrefix, ids, clazz, dbFallBack, time, timeUnit, null, null);
+    }
+
+    /**
+     * 和queryBatch一样，另外把调用方的命令追加到MGET后面，放进同一个pipeline，一次往返同时拿到缓存和这些命令的结果
+     * @param extraCommands 追加到pipeline里的命令，为null时只执行MGET
+     * @param extraResults 追加命令的结果按执行顺序放进这里，结果是没有经过反序列化的原始值
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+                                     Function<Collection<ID>, Map<ID,R>> dbFallBack, Long time, TimeUnit timeUnit,
+                                     Consumer<RedisConnection> extraCommands, List<Object> extraResults) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = idList.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values;
+        if (extraCommands == null) {
+            values = rawMultiGet(keys);
+        } else {
+            byte[][] rawKeys = keys.stream().map(CacheClient::raw).toArray(byte[][]::new);
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.stringCommands().mGet(rawKeys);
+                extraCommands.accept(connection);
+                return null;
+            }, RedisSerializer.byteArray());
+            values = (List<byte[]>) results.get(0);
+            if (extraResults != null) {
+                extraResults.addAll(results.subList(1, results.size()));
+            }
+        }
+
+        Map<ID,R> found = new HashMap<>(idList.size());
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length > 0) {
+                found.put(idList.get(i), codec.decode(bytes, clazz));
+            } else if (bytes == null) {
+                //空字符串是防穿透的空值，不算未命中
+                misses.add(idList.get(i));
+            }
+        }
+        if (!misses.isEmpty()) {
+            Map<ID,R> loaded = dbFallBack.apply(misses);
+            Map<String,byte[]> writes = new HashMap<>(misses.size());
+            for (ID id : misses) {
+                R r = loaded == null ? null : loaded.get(id);
+                if (r != null) {
+                    found.put(id, r);
+                }
+                writes.put(keyPrefix + id, r == null ? new byte[0] : codec.encode(r));
+            }
+            setBatch(writes, time, timeUnit);
+        }
+        return idList.stream().map(found::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 批量查询，对应queryWithLogicExpire
+     * 逻辑过期的数据照常返回，过期的key一起用pipeline抢重建锁，抢到的交给重建线程池一次查库、按版本号写回；
+     * 只有redis里真正不存在的key才同步查数据库，数据库里也没有的id不写空值
+     * 不经过本地缓存，调用方可以放心修改返回的对象
+     */
+    public <R,ID> List<R> queryBatchWithLogicExpire(String keyPrefix, String lockPrefix, Collection<ID> ids, Class<R> clazz,
+                                                    Function<Collection<ID>, Map<ID,R>> dbFallBack,
+                                                    Long logicTime, TimeUnit timeUnit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = idList.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        //pipeline批量HMGET e d v
+        List<Object> values;
+        try {
+            values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.hashCommands().hMGet(raw(key), FIELD_EXPIRE, FIELD_DATA, FIELD_VERSION);
+                }
+                return null;
+            }, RedisSerializer.byteArray());
+        } catch (RedisPipelineException e) {
+            //还没迁移的旧格式字符串会报WRONGTYPE，当作未命中，重新写成hash
+            values = e.getPipelineResult();
+        }
+
+        long now = System.currentTimeMillis();
+        Map<ID,R> found = new HashMap<>(idList.size());
+        List<ID> misses = new ArrayList<>();
+        //逻辑过期的id -> 读到的版本号
+        Map<ID,byte[]> expired = new LinkedHashMap<>();
+        for (int i = 0; i < idList.size(); i++) {
+            Object value = values.size() > i ? values.get(i) : null;
+            List<?> fields = value instanceof List ? (List<?>) value : null;
+            if (fields == null || fields.size() < 3 || fields.get(0) == null || fields.get(1) == null) {
+                misses.add(idList.get(i));
+                continue;
+            }
+            found.put(idList.get(i), codec.decode((byte[]) fields.get(1), clazz));
+            if (Long.parseLong(new String((byte[]) fields.get(0), StandardCharsets.UTF_8)) <= now) {
+                expired.put(idList.get(i), fields.get(2) == null ? NO_VERSION : (byte[]) fields.get(2));
+            }
+        }
+        if (!expired.isEmpty()) {
+            rebuildBatchLogicExpire(keyPrefix, lockPrefix, expired, dbFallBack, logicTime, timeUnit);
+        }
+        if (!misses.isEmpty()) {
+            Map<ID,R> loaded = dbFallBack.apply(misses);
+            if (loaded != null && !loaded.isEmpty()) {
+                Map<String,R> writes = new HashMap<>(loaded.size());
+                loaded.forEach((id, r) -> {
+                    if (r != null) {
+                        writes.put(keyPrefix + id, r);
+                        found.put(id, r);
+                    }
+                });
+                setBatchWithLogicExpire(writes, logicTime, timeUnit);
+            }
+        }
+        return idList.stream().map(found::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 批量重建逻辑过期的key：pipeline一次SET NX抢所有重建锁，抢到的id交给一个重建任务，一次查库后逐个按版本号写回
+     * 别的线程或节点正在重建的key跳过，线程池满了放掉锁，下次请求再触发
+     */
+    private <R,ID> void rebuildBatchLogicExpire(String keyPrefix, String lockPrefix, Map<ID,byte[]> expired,
+                                                Function<Collection<ID>, Map<ID,R>> dbFallBack,
+                                                Long logicTime, TimeUnit timeUnit) {
+        List<ID> expiredIds = new ArrayList<>(expired.keySet());
+        byte[] lockValue = new byte[0];
+        Expiration lockTtl = Expiration.from(RedisConstants.LOCK_SHOP_TTL, TimeUnit.MINUTES);
+        List<Object> acquired = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : expiredIds) {
+                connection.stringCommands().set(raw(lockPrefix + id), lockValue, lockTtl,
+                        RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        for (int i = 0; i < expiredIds.size(); i++) {
+            if (Boolean.TRUE.equals(acquired.get(i))) {
+                locked.add(expiredIds.get(i));
+            }
+        }
+        if (locked.isEmpty()) {
+            return;
+        }
+        List<String> lockKeys = locked.stream().map(id -> lockPrefix + id).collect(Collectors.toList());
+        boolean submitted = refreshAhead.submit(() -> {
+            try {
+                Map<ID,R> loaded = dbFallBack.apply(locked);
+                for (ID id : locked) {
+                    R r = loaded == null ? null : loaded.get(id);
+                    //数据库里已经没有了，缓存由删除方处理，这里不写
+                    if (r != null && setWithLogicExpire(keyPrefix + id, r, logicTime, timeUnit, expired.get(id)) == 0) {
+                        log.debug("缓存已被其他写入更新，放弃重建，key:{}", keyPrefix + id);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("批量重建缓存失败，keys:{}", lockKeys, e);
+            } finally {
+                stringRedisTemplate.delete(lockKeys);
+            }
+        });
+        if (!submitted) {
+            stringRedisTemplate.delete(lockKeys);
+        }
+    }
+
+    /**
+     * 批量写入带逻辑过期时间的数据，pipeline里逐个执行写入脚本，旧格式的key一并转成hash
+     * 不广播本地缓存失效，用于回填未命中的key和启动预热
+     * @param values key -> 数据
+     */
+    public void setBatchWithLogicExpire(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        byte[] expireAt = raw(String.valueOf(System.currentTimeMillis() + timeUnit.toMillis(time)));
+        byte[] script = raw(LOGIC_SET_SCRIPT.getScriptAsString());
+        Map<byte[],byte[]> writes = new HashMap<>(values.size());
+        values.forEach((key, value) -> writes.put(raw(key), codec.encode(value)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, value) -> connection.scriptingCommands()
+                    .eval(script, ReturnType.INTEGER, 1, key, expireAt, value, NO_VERSION));
+            return null;
+        });
+    }
+
+    /**
+     * pipeline批量写入，time为null时不设置过期时间；空值用CACHE_NULL_TTL
+     */
+    private void setBatch(Map<String,byte[]> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> {
+                if (time == null) {
+                    connection.stringCommands().set(raw(key), value);
+                } else if (value.length == 0) {
+                    connection.stringCommands().set(raw(key), value,
+                            Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(raw(key), value,
+                            Expiration.from(time, timeUnit), RedisStringCommands.SetOption.upsert());
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 缓存值按字节读写，绕过StringRedisTemplate的字符串序列化，编码交给codec
+     */
+    private byte[] rawGet(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(raw(key)));
+    }
+
+    private List<byte[]> rawMultiGet(List<String> keys) {
+        byte[][] rawKeys = keys.stream().map(CacheClient::raw).toArray(byte[][]::new);
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+    }
+
+    /**
+     * time为null时不设置过期时间
      */
-    private  static final ExecutorService CATCH_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private void rawSet(String key, byte[] value, Long time, TimeUnit timeUnit) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (time == null) {
+                return connection.stringCommands().set(raw(key), value);
+            }
+            return connection.stringCommands().set(raw(key), value,
+                    Expiration.from(time, timeUnit), RedisStringCommands.SetOption.upsert());
+        });
+    }
+
+    private static byte[] raw(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final RedisSerializer<List> LIST_RESULT = (RedisSerializer) RedisSerializer.byteArray();
+    @SuppressWarnings("unchecked")
+    private static final RedisSerializer<Long> LONG_RESULT = (RedisSerializer) RedisSerializer.byteArray();
 
 
     public <R,ID> R queryWithLogicExpire(String keyPrefix,String lockPrefix,ID id,Class<R> clazz,Function<ID,R> dbFallBack,Long logicTime,TimeUnit timeUnit) throws InterruptedException {
-        //首先根据id查询redis
+        //首先根据id查询本地缓存，本地缓存只存没有逻辑过期的数据
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        R local = localCache.get(keyPrefix, key, clazz);
+        if (local != null) {
+            //本地命中也要计入访问频率，热点key大多在这里命中
+            recordAccess(key, lockPrefix + id, id, dbFallBack, logicTime, timeUnit, 0);
+            return local;
+        }
+        //同一个key的并发请求合并，逻辑过期后只有一个线程去查redis、抢锁
+        return singleFlight.execute(key, () -> loadWithLogicExpire(keyPrefix, lockPrefix, key, id, clazz, dbFallBack, logicTime, timeUnit));
+    }
 
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //不存在，直接为null，先存进去再测试吧
-        if (StrUtil.isBlank(json)) {
-           return null;
+    private <R,ID> R loadWithLogicExpire(String keyPrefix, String lockPrefix, String key, ID id, Class<R> clazz,
+                                         Function<ID,R> dbFallBack, Long logicTime, TimeUnit timeUnit) {
+        String lockKey = lockPrefix + id;
+        //一次往返：脚本里判断逻辑过期，过期了顺便抢重建锁，拿锁和判断过期是原子的，不用拿到锁再查一遍
+        List<Object> result = stringRedisTemplate.execute(LOGIC_GET_SCRIPT, RedisSerializer.byteArray(), LIST_RESULT,
+                Arrays.asList(key, lockKey), raw(String.valueOf(System.currentTimeMillis())),
+                raw(String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.LOCK_SHOP_TTL))));
+        //不存在（被更新或删除的店铺删掉了缓存），查数据库写回；本节点的并发请求已经被singleFlight合并，存在性由调用方的布隆过滤器先挡一道
+        if (result == null || result.isEmpty()) {
+            R r = dbFallBack.apply(id);
+            if (r != null) {
+                setWithLogicExpire(key, r, logicTime, timeUnit, NO_VERSION);
+            }
+            return r;
         }
-        //存在，将内容反序列化，校验逻辑过期时间是否过期
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //获取店铺
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, clazz);
+        if ((Long) result.get(0) == LOGIC_LEGACY) {
+            return loadLegacyLogicExpire(key, lockKey, id, clazz, dbFallBack, logicTime, timeUnit, (byte[]) result.get(1));
+        }
+        //只解析一次数据
+        R r = codec.decode((byte[]) result.get(1), clazz);
+        long state = (Long) result.get(2);
+        long expireAt = Long.parseLong(new String((byte[]) result.get(4), StandardCharsets.UTF_8));
+        recordAccess(key, lockKey, id, dbFallBack, logicTime, timeUnit, expireAt);
 
         //没有过期，返回当前店铺
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if (state == STATE_FRESH) {
+            //本地副本不能活过逻辑过期时间
+            localCache.put(keyPrefix, key, r, expireAt);
             return r;
         }
-        //过期了，新线程进行重建
-        //先获取锁，再检查一遍过期了没，然后开启新线程
-        boolean lock = getLock(lockPrefix + id);
-
-        if (lock) {
-            // 关键修改：获取锁后重新查询Redis，用最新数据判断是否需要重建（解决第一点问题）
-            String latestJson = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(latestJson)) {
-                RedisData latestRedisData = null;
-                try {
-                    latestRedisData = JSONUtil.toBean(latestJson, RedisData.class);
-                } catch (Exception e) {
-                    stringRedisTemplate.delete(key);
-                    log.error("重新查询Redis后反序列化失败，key:{}", key, e);
-                    realiseLock(lockPrefix + id); // 释放锁
-                    return r; // 返回旧数据
-                }
-                LocalDateTime latestExpireTime = latestRedisData.getExpireTime();
-                // 最新数据未过期，无需重建，直接释放锁
-                if (latestExpireTime != null && latestExpireTime.isAfter(LocalDateTime.now())) {
-                    realiseLock(lockPrefix+ id);
-                    return JSONUtil.toBean((JSONObject) latestRedisData.getData(), clazz);
-                }}
-
-            //真的过期了，开启新线程
-            CATCH_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    R r1 = dbFallBack.apply(id);
-                    //重建
-                    setWithLogicExpire(key,r1,logicTime,timeUnit);
-                }catch (Exception e){
-                    e.printStackTrace();
-                }finally {
-                    //释放锁
-                    this.realiseLock(lockPrefix + id);
-                }
-            });}
-
+        //过期了且拿到了锁，新线程进行重建；别人在重建就直接返回旧数据
+        if (state == STATE_REBUILD) {
+            rebuildLogicExpire(key, lockKey, id, dbFallBack, logicTime, timeUnit, (byte[]) result.get(3));
+        }
         //返回旧数据
         return r;
     }
 
+    /**
+     * 迁移前写入的整串RedisData，按旧方式判断过期，重建时会写成hash
+     */
+    private <R,ID> R loadLegacyLogicExpire(String key, String lockKey, ID id, Class<R> clazz, Function<ID,R> dbFallBack,
+                                           Long logicTime, TimeUnit timeUnit, byte[] bytes) {
+        RedisData<R> redisData;
+        try {
+            redisData = codec.decodeLogic(bytes, clazz);
+        } catch (Exception e) {
+            stringRedisTemplate.delete(key);
+            log.error("旧格式缓存反序列化失败，key:{}", key, e);
+            return null;
+        }
+        LocalDateTime expireTime = redisData.getExpireTime();
+        if ((expireTime == null || !expireTime.isAfter(LocalDateTime.now())) && getLock(lockKey)) {
+            rebuildLogicExpire(key, lockKey, id, dbFallBack, logicTime, timeUnit, NO_VERSION);
+        }
+        return redisData.getData();
+    }
+
+    private <R,ID> void rebuildLogicExpire(String key, String lockKey, ID id, Function<ID,R> dbFallBack,
+                                           Long logicTime, TimeUnit timeUnit, byte[] version) {
+        boolean submitted = refreshAhead.submit(()->{
+            try {
+                R r1 = dbFallBack.apply(id);
+                //重建，版本号变了说明期间有人写过更新的数据，不覆盖
+                if (setWithLogicExpire(key, r1, logicTime, timeUnit, version) == 0) {
+                    log.debug("缓存已被其他写入更新，放弃重建，key:{}", key);
+                }
+            }catch (Exception e){
+                log.error("重建缓存失败，key:{}", key, e);
+            }finally {
+                //释放锁
+                this.realiseLock(lockKey);
+            }
+        });
+        if (!submitted) {
+            //重建线程池满了，放掉锁，这次先返回旧数据，之后的请求再触发重建
+            realiseLock(lockKey);
+        }
+    }
+
+    /**
+     * 登记访问，热点key快过期时由CacheRefreshAhead提前拿锁重建
+     */
+    private <R,ID> void recordAccess(String key, String lockKey, ID id, Function<ID,R> dbFallBack,
+                                     Long logicTime, TimeUnit timeUnit, long expireAt) {
+        refreshAhead.recordAccess(key, expireAt, timeUnit.toMillis(logicTime), () -> {
+            if (!getLock(lockKey)) {
+                return 0;
+            }
+            try {
+                //查数据库之前先读版本号，和重建一样按版本写回：期间被删除或被别人写过，手里的就是旧快照，不覆盖
+                byte[] version = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                        connection.hashCommands().hGet(raw(key), FIELD_VERSION));
+                if (version == null) {
+                    return 0;
+                }
+                R r = dbFallBack.apply(id);
+                return r == null ? 0 : setWithLogicExpire(key, r, logicTime, timeUnit, version);
+            } finally {
+                realiseLock(lockKey);
+            }
+        });
+    }
+
 
 
     /**
@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码，CacheClient读写redis时统一走这里，通过hmdp.cache.codec切换实现
+ * 解码时要能识别其他实现写进去的旧数据，切换编码方式不需要清缓存
+ */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> clazz);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementClass);
+
+    /**
+     * 解析带逻辑过期时间的数据，data直接解析成目标类型
+     */
+    <T> RedisData<T> decodeLogic(byte[] bytes, Class<T> clazz);
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.mapper.ShopMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 缓存变更同步：tb_shop、tb_shop_type、tb_voucher、tb_seckill_voucher上的触发器把变更的行写进tb_cache_outbox，
+ * 这里定时读出来，同一个key的多次变更合并成一次，按表批量处理：
+ * 店铺新增/修改重新查库写入逻辑过期缓存和GEO，删除则删缓存；店铺类型有变化删掉整个类型列表；优惠券有变化清除售罄标记
+ * 不管是哪个service改的还是直接执行的SQL，缓存都能跟上，不再依赖每个写入的地方记得删缓存
+ * 多个节点用redisson锁选出一个来处理，处理完才删除outbox里的行，失败了下一轮重试
+ */
+@Component
+@Slf4j
+public class CacheOutboxRelay {
+
+    private static final String LOCK_KEY = "lock:cache:outbox";
+    private static final String TABLE_SHOP = "tb_shop";
+    private static final String TABLE_SHOP_TYPE = "tb_shop_type";
+    private static final String TABLE_VOUCHER = "tb_voucher";
+    private static final String TABLE_SECKILL_VOUCHER = "tb_seckill_voucher";
+    private static final String OP_DELETE = "D";
+
+    private final CacheOutboxMapper cacheOutboxMapper;
+    private final ShopMapper shopMapper;
+    private final CacheClient cacheClient;
+    private final ShopBloomFilter shopBloomFilter;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.outbox.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.outbox.poll-millis:500}")
+    private long pollMillis;
+    /**
+     * 每轮最多读取的outbox行数
+     */
+    @Value("${hmdp.cache.outbox.batch-size:1000}")
+    private int batchSize;
+
+    private Counter eventCounter;
+    private Counter appliedCounter;
+
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Cache-Outbox-Relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CacheOutboxRelay(CacheOutboxMapper cacheOutboxMapper, ShopMapper shopMapper, CacheClient cacheClient,
+                            ShopBloomFilter shopBloomFilter, SeckillSoldOutRegistry seckillSoldOutRegistry,
+                            StringRedisTemplate stringRedisTemplate, RedissonClient redissonClient,
+                            MeterRegistry meterRegistry) {
+        this.cacheOutboxMapper = cacheOutboxMapper;
+        this.shopMapper = shopMapper;
+        this.cacheClient = cacheClient;
+        this.shopBloomFilter = shopBloomFilter;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        eventCounter = Counter.builder("cache.outbox.events").register(meterRegistry);
+        appliedCounter = Counter.builder("cache.outbox.applied.keys").register(meterRegistry);
+        if (enabled) {
+            pollExecutor.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pollExecutor.shutdownNow();
+    }
+
+    private void poll() {
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        //拿不到说明别的节点正在处理
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //一轮读满了说明积压，接着读
+            while (relayOnce() >= batchSize) {
+                log.debug("缓存outbox有积压，继续处理");
+            }
+        } catch (Exception e) {
+            log.error("处理缓存outbox失败，下一轮重试", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读一批outbox，合并后处理，成功后按id删除
+     * @return 本批读到的行数
+     */
+    private int relayOnce() {
+        List<CacheOutbox> events = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                .orderByAsc("id").last("limit " + batchSize));
+        if (events.isEmpty()) {
+            return 0;
+        }
+        eventCounter.increment(events.size());
+
+        //表 -> (行id -> 最后一次操作)，同一行多次变更只处理一次
+        Map<String, Map<Long, String>> latest = new HashMap<>();
+        for (CacheOutbox event : events) {
+            latest.computeIfAbsent(event.getTableName(), t -> new LinkedHashMap<>()).put(event.getRowId(), event.getOp());
+        }
+        applyShops(latest.getOrDefault(TABLE_SHOP, new LinkedHashMap<>()));
+        if (latest.containsKey(TABLE_SHOP_TYPE)) {
+            cacheClient.delete(RedisConstants.CACHE_SHOP_TYPES_KEY);
+            appliedCounter.increment();
+        }
+        Set<Long> voucherIds = new LinkedHashSet<>();
+        voucherIds.addAll(latest.getOrDefault(TABLE_VOUCHER, new LinkedHashMap<>()).keySet());
+        voucherIds.addAll(latest.getOrDefault(TABLE_SECKILL_VOUCHER, new LinkedHashMap<>()).keySet());
+        for (Long voucherId : voucherIds) {
+            seckillSoldOutRegistry.clear(voucherId);
+        }
+        appliedCounter.increment(voucherIds.size());
+
+        //只删除这次读到的行：自增id不代表提交顺序，按id范围删可能删掉还没读到的行
+        cacheOutboxMapper.deleteBatchIds(events.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+        return events.size();
+    }
+
+    /**
+     * 新增和修改的店铺一次查库，pipeline写入逻辑过期缓存和GEO；查不到的（已删除）删缓存
+     */
+    private void applyShops(Map<Long, String> shopOps) {
+        if (shopOps.isEmpty()) {
+            return;
+        }
+        List<Long> upserts = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+        shopOps.forEach((id, op) -> {
+            if (OP_DELETE.equals(op)) {
+                deletes.add(RedisConstants.CACHE_SHOP_KEY + id);
+            } else {
+                upserts.add(id);
+            }
+        });
+        if (!upserts.isEmpty()) {
+            List<Shop> shops = shopMapper.selectBatchIds(upserts);
+            Map<String, Shop> values = new HashMap<>(shops.size());
+            Map<String, List<RedisGeoCommands.GeoLocation<String>>> locations = new HashMap<>();
+            Set<Long> found = new LinkedHashSet<>();
+            for (Shop shop : shops) {
+                found.add(shop.getId());
+                values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    locations.computeIfAbsent(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), k -> new ArrayList<>())
+                            .add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+                }
+            }
+            //outbox是异步处理的，读到的时候行可能已经被删了
+            upserts.stream().filter(id -> !found.contains(id))
+                    .forEach(id -> deletes.add(RedisConstants.CACHE_SHOP_KEY + id));
+
+            //逻辑过期时间和ShopServiceImpl.getShopById保持一致
+            cacheClient.setBatchWithLogicExpire(values, RedisConstants.CACHE_SHOP_LOGIC_TTL, TimeUnit.MINUTES);
+            cacheClient.invalidateLocal(values.keySet());
+            if (!locations.isEmpty()) {
+                stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object execute(RedisOperations operations) {
+                        locations.forEach((key, list) -> operations.opsForGeo().add(key, list));
+                        return null;
+                    }
+                });
+            }
+            found.forEach(shopBloomFilter::add);
+        }
+        cacheClient.deleteBatch(deletes);
+        appliedCounter.increment(shopOps.size());
+    }
+}
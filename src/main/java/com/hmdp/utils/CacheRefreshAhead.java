@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * 逻辑过期缓存的提前刷新
+ * 用count-min sketch统计每个key的访问频率，超过阈值的key登记为热点，定时检查，快到逻辑过期时间时主动重建，
+ * 热点key上的请求就不会再读到过期数据；一段时间没人访问或者频率降下来的key不再刷新
+ * 缓存重建（请求触发的和提前刷新的）共用一个有界线程池，池和队列都满了直接拒绝，由调用方继续返回旧数据
+ */
+@Component
+@Slf4j
+public class CacheRefreshAhead {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.refresh-ahead.enabled:true}")
+    private boolean enabled;
+    /**
+     * 一个衰减周期内访问次数达到这个值才算热点
+     */
+    @Value("${hmdp.cache.refresh-ahead.hot-threshold:20}")
+    private long hotThreshold;
+    /**
+     * 剩余有效期小于逻辑过期时长的这个比例时开始刷新
+     */
+    @Value("${hmdp.cache.refresh-ahead.lead-ratio:0.2}")
+    private double leadRatio;
+    @Value("${hmdp.cache.refresh-ahead.tick-millis:500}")
+    private long tickMillis;
+    /**
+     * 超过这么久没有访问的热点key不再刷新
+     */
+    @Value("${hmdp.cache.refresh-ahead.cool-off-seconds:60}")
+    private long coolOffSeconds;
+    @Value("${hmdp.cache.refresh-ahead.max-hot-keys:10000}")
+    private int maxHotKeys;
+    /**
+     * 访问计数每隔这么久减半
+     */
+    @Value("${hmdp.cache.refresh-ahead.decay-seconds:60}")
+    private long decaySeconds;
+
+    @Value("${hmdp.cache.rebuild.core-threads:4}")
+    private int rebuildCoreThreads;
+    @Value("${hmdp.cache.rebuild.max-threads:10}")
+    private int rebuildMaxThreads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:200}")
+    private int rebuildQueueCapacity;
+
+    private final CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+    private final Map<String, HotEntry> hotKeys = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor rebuildExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Cache-Refresh-Ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Counter rejectedCounter;
+    private Counter refreshedCounter;
+    private Counter cooledCounter;
+
+    public CacheRefreshAhead(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        rebuildExecutor = new ThreadPoolExecutor(rebuildCoreThreads, rebuildMaxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueCapacity), r -> {
+                    Thread thread = new Thread(r, "Cache-Rebuild-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+
+        rejectedCounter = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        refreshedCounter = Counter.builder("cache.refresh.ahead").tag("result", "refreshed").register(meterRegistry);
+        cooledCounter = Counter.builder("cache.refresh.ahead").tag("result", "cooled").register(meterRegistry);
+        Gauge.builder("cache.refresh.hot.keys", hotKeys, Map::size).register(meterRegistry);
+        Gauge.builder("cache.rebuild.queue.size", rebuildExecutor, e -> e.getQueue().size()).register(meterRegistry);
+
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+            scheduler.scheduleWithFixedDelay(sketch::halve, decaySeconds, decaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * 提交缓存重建任务
+     * @return 线程池和队列都满了返回false，调用方放弃这次重建
+     */
+    public boolean submit(Runnable task) {
+        try {
+            rebuildExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            return false;
+        }
+    }
+
+    /**
+     * 记录一次访问，访问频率够高就登记为热点
+     * @param key 缓存key
+     * @param expireAt 当前数据的逻辑过期时间（毫秒），不知道时传0
+     * @param ttlMillis 逻辑过期时长
+     * @param refresher 执行一次刷新，返回新的逻辑过期时间；没有刷新（比如重建锁在别人手里）返回0
+     */
+    public void recordAccess(String key, long expireAt, long ttlMillis, LongSupplier refresher) {
+        if (!enabled) {
+            return;
+        }
+        long count = sketch.increment(key);
+        HotEntry entry = hotKeys.get(key);
+        if (entry == null) {
+            if (count < hotThreshold || hotKeys.size() >= maxHotKeys) {
+                return;
+            }
+            entry = hotKeys.computeIfAbsent(key, k -> new HotEntry(refresher, ttlMillis));
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        if (expireAt > entry.expireAt) {
+            entry.expireAt = expireAt;
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long coolOffMillis = TimeUnit.SECONDS.toMillis(coolOffSeconds);
+        long coolThreshold = Math.max(1, hotThreshold / 4);
+        for (Iterator<Map.Entry<String, HotEntry>> it = hotKeys.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, HotEntry> e = it.next();
+            HotEntry entry = e.getValue();
+            //冷下来的key不再刷新
+            if (now - entry.lastAccess > coolOffMillis || sketch.estimate(e.getKey()) < coolThreshold) {
+                it.remove();
+                cooledCounter.increment();
+                continue;
+            }
+            //还不知道过期时间（只在本地缓存命中过），等下一次读redis
+            if (entry.expireAt == 0) {
+                continue;
+            }
+            long lead = Math.max(tickMillis * 2, (long) (entry.ttlMillis * leadRatio));
+            if (entry.expireAt - now > lead || !entry.refreshing.compareAndSet(false, true)) {
+                continue;
+            }
+            boolean submitted = submit(() -> {
+                try {
+                    long newExpireAt = entry.refresher.getAsLong();
+                    if (newExpireAt > 0) {
+                        entry.expireAt = newExpireAt;
+                        refreshedCounter.increment();
+                    }
+                } catch (Exception ex) {
+                    log.error("提前刷新缓存失败，key:{}", e.getKey(), ex);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+            if (!submitted) {
+                //重建线程池满了，下一轮再试
+                entry.refreshing.set(false);
+            }
+        }
+    }
+
+    private static final class HotEntry {
+        private final LongSupplier refresher;
+        private final long ttlMillis;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long lastAccess;
+        private volatile long expireAt;
+
+        private HotEntry(LongSupplier refresher, long ttlMillis) {
+            this.refresher = refresher;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+}
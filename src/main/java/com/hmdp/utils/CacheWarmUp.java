@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 启动预热：发布后cache:shop:*、cache:shop:types、shop:geo:*都是冷的，在这里一次性装好
+ * tb_shop用MyBatis游标流式读取，按批交给有限的几个线程用pipeline写入缓存和GEO，读的同时在写
+ * 布隆过滤器由ShopBloomFilter启动时自己从tb_shop加载，这里不再重复扫描
+ * 作为ApplicationRunner同步执行，Spring Boot在所有runner结束后才把就绪状态改为ACCEPTING_TRAFFIC，
+ * 所以预热完成前/actuator/health/readiness不会通过，负载均衡不会把流量打过来
+ */
+@Component
+@Slf4j
+public class CacheWarmUp implements ApplicationRunner {
+
+    private final ShopMapper shopMapper;
+    private final ShopTypeMapper shopTypeMapper;
+    private final CacheClient cacheClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+    /**
+     * 每批写入的店铺数
+     */
+    @Value("${hmdp.warmup.batch-size:500}")
+    private int batchSize;
+    /**
+     * 同时写redis的批数
+     */
+    @Value("${hmdp.warmup.parallelism:4}")
+    private int parallelism;
+    /**
+     * 预热失败是否终止启动，默认只记日志，节点照常以冷缓存启动
+     */
+    @Value("${hmdp.warmup.fail-on-error:false}")
+    private boolean failOnError;
+
+    private final AtomicLong warmedShops = new AtomicLong();
+    private volatile boolean done;
+
+    public CacheWarmUp(ShopMapper shopMapper, ShopTypeMapper shopTypeMapper, CacheClient cacheClient,
+                       StringRedisTemplate stringRedisTemplate,
+                       TransactionTemplate transactionTemplate, MeterRegistry meterRegistry) {
+        this.shopMapper = shopMapper;
+        this.shopTypeMapper = shopTypeMapper;
+        this.cacheClient = cacheClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        Gauge.builder("cache.warmup.shops", warmedShops, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("cache.warmup.done", this, w -> w.done ? 1 : 0).register(meterRegistry);
+        if (!enabled) {
+            done = true;
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            warmShopTypes();
+            warmShops();
+            done = true;
+            log.info("缓存预热完成，店铺 {} 个，耗时 {} ms", warmedShops.get(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            if (failOnError) {
+                throw e;
+            }
+            log.error("缓存预热失败，以冷缓存启动，已预热店铺 {} 个", warmedShops.get(), e);
+        }
+    }
+
+    private void warmShopTypes() {
+        List<ShopType> types = transactionTemplate.execute(status -> {
+            List<ShopType> list = new ArrayList<>();
+            try (Cursor<ShopType> cursor = shopTypeMapper.scanAll()) {
+                cursor.forEach(list::add);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return list;
+        });
+        if (types == null) {
+            return;
+        }
+        types.sort((a, b) -> Integer.compare(a.getSort() == null ? 0 : a.getSort(), b.getSort() == null ? 0 : b.getSort()));
+        //和getTypeList一样整个列表一个key、不过期
+        cacheClient.set(RedisConstants.CACHE_SHOP_TYPES_KEY, types, null, null);
+    }
+
+    /**
+     * 游标边读边分批提交，信号量限制同时在写的批数，读得比写得快时游标会停下来等
+     */
+    private void warmShops() throws InterruptedException {
+        ExecutorService writers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "Cache-Warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inflight = new Semaphore(parallelism);
+        AtomicInteger failures = new AtomicInteger();
+        try {
+            transactionTemplate.execute(status -> {
+                List<Shop> batch = new ArrayList<>(batchSize);
+                try (Cursor<Shop> cursor = shopMapper.scanAll()) {
+                    for (Shop shop : cursor) {
+                        batch.add(shop);
+                        if (batch.size() >= batchSize) {
+                            submit(writers, inflight, failures, batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        submit(writers, inflight, failures, batch);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+            //等所有批次写完
+            inflight.acquire(parallelism);
+        } finally {
+            writers.shutdown();
+        }
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " 批店铺预热写入失败");
+        }
+    }
+
+    private void submit(ExecutorService writers, Semaphore inflight, AtomicInteger failures, List<Shop> batch)
+            throws InterruptedException {
+        inflight.acquire();
+        writers.execute(() -> {
+            try {
+                writeBatch(batch);
+                long total = warmedShops.addAndGet(batch.size());
+                log.info("缓存预热进度：已写入店铺 {} 个", total);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                log.error("店铺预热写入失败，本批 {} 个", batch.size(), e);
+            } finally {
+                inflight.release();
+            }
+        });
+    }
+
+    /**
+     * 一批店铺：逻辑过期缓存和GEO各一个pipeline
+     */
+    private void writeBatch(List<Shop> batch) {
+        Map<String, Shop> values = new HashMap<>(batch.size());
+        Map<String, List<RedisGeoCommands.GeoLocation<String>>> locations = new HashMap<>();
+        for (Shop shop : batch) {
+            values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+            if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                locations.computeIfAbsent(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), k -> new ArrayList<>())
+                        .add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+        }
+        //逻辑过期时间和ShopServiceImpl.getShopById保持一致
+        cacheClient.setBatchWithLogicExpire(values, RedisConstants.CACHE_SHOP_LOGIC_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                locations.forEach((key, list) -> operations.opsForGeo().add(key, list));
+                return null;
+            }
+        });
+    }
+}
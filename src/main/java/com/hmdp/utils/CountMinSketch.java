@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * count-min sketch，用固定大小的计数器估算key的访问次数，估算值只会偏大不会偏小
+ * 计数器可以并发累加；halve()把所有计数减半，旧的访问慢慢失去权重，冷下来的key估算值会降下去
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray counters;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        //宽度取2的幂，下标用位运算
+        this.width = Integer.highestOneBit(Math.max(16, width) - 1) << 1;
+        this.counters = new AtomicLongArray(this.depth * this.width);
+    }
+
+    /**
+     * 计数加一，返回加完之后的估算值
+     */
+    public long increment(String key) {
+        long hash = hash(key);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.incrementAndGet(index(hash, row)));
+        }
+        return min;
+    }
+
+    public long estimate(String key) {
+        long hash = hash(key);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(index(hash, row)));
+        }
+        return min;
+    }
+
+    /**
+     * 衰减：所有计数减半
+     */
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, v -> v >>> 1);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    private int index(long hash, int row) {
+        long h = hash + row * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return row * width + (int) (h & (width - 1));
+    }
+
+    /**
+     * 64位FNV-1a，比String.hashCode分布好，不同行再各自打散
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
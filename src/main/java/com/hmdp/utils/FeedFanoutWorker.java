@@ -0,0 +1,322 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 关注流推送任务：发布blog时只往stream.feed.fanout写一条消息，由这里的消费者在后台推送到粉丝收件箱
+ * 粉丝按(follow_user_id, id)索引分页读取，每页一次pipeline：ZADD feed:{userId}并裁剪到上限、记录进度、XCLAIM续期消息
+ * 进度存在feed:fanout:checkpoint（消息id -> 已推送到的粉丝记录id），节点宕机后消息留在pending-list，
+ * 空闲超时后被其他节点XCLAIM认领，从进度处继续推送；ZADD是幂等的，重复推送最后一页也没关系
+ */
+@Component
+@Slf4j
+public class FeedFanoutWorker {
+
+    private static final String STREAM_KEY = "stream.feed.fanout";
+    private static final String CONSUMER_GROUP = "feed-fanout-group";
+    private static final String CONSUMER_PREFIX = "feed-fanout-consumer-";
+    private static final String CHECKPOINT_KEY = "feed:fanout:checkpoint";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final FollowMapper followMapper;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 每页读取的粉丝数，也是一次pipeline的ZADD数
+     */
+    @Value("${hmdp.feed.fanout-batch-size:500}")
+    private int fanoutBatchSize;
+    /**
+     * 收件箱保留的最大条数
+     */
+    @Value("${hmdp.feed.inbox-max-size:500}")
+    private long inboxMaxSize;
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int fanoutThreads;
+    @Value("${hmdp.feed.fanout-recovery-interval-seconds:10}")
+    private long recoveryIntervalSeconds;
+    /**
+     * 消息超过这么久没有进展（每推送一页续期一次）才认为原消费者已经宕机
+     */
+    @Value("${hmdp.feed.fanout-min-idle-seconds:60}")
+    private long minIdleSeconds;
+    /**
+     * 超过投递次数的任务放弃，避免一条坏消息一直重试
+     */
+    @Value("${hmdp.feed.fanout-max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 消费者名里带上节点标识，多个节点的消费者不会重名
+     */
+    private final String nodeId = Long.toHexString(System.nanoTime());
+
+    private ExecutorService consumerExecutor;
+    private final ScheduledExecutorService recoveryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Feed-Fanout-Recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Counter pushedCounter;
+    private Counter completedCounter;
+    private Counter resumedCounter;
+    private Counter abandonedCounter;
+    private final AtomicLong pendingJobs = new AtomicLong();
+
+    public FeedFanoutWorker(StringRedisTemplate stringRedisTemplate, FollowMapper followMapper, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.followMapper = followMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        pushedCounter = Counter.builder("feed.fanout.pushed").register(meterRegistry);
+        completedCounter = Counter.builder("feed.fanout.jobs").tag("result", "completed").register(meterRegistry);
+        resumedCounter = Counter.builder("feed.fanout.jobs").tag("result", "resumed").register(meterRegistry);
+        abandonedCounter = Counter.builder("feed.fanout.jobs").tag("result", "abandoned").register(meterRegistry);
+        Gauge.builder("feed.fanout.pending", pendingJobs, AtomicLong::get).register(meterRegistry);
+
+        try {
+            stringRedisTemplate.opsForStream().createGroup(STREAM_KEY, ReadOffset.from("0"), CONSUMER_GROUP);
+            log.info("消费者组 {} 创建成功", CONSUMER_GROUP);
+        } catch (Exception e) {
+            log.info("消费者组 {} 已存在", CONSUMER_GROUP);
+        }
+        AtomicInteger index = new AtomicInteger(1);
+        consumerExecutor = Executors.newFixedThreadPool(fanoutThreads, r -> {
+            Thread thread = new Thread(r, "Feed-Fanout-Consumer-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 1; i <= fanoutThreads; i++) {
+            String consumerName = CONSUMER_PREFIX + nodeId + "-" + i;
+            consumerExecutor.submit(() -> consume(consumerName));
+        }
+        recoveryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                recoverPending();
+                trimStream();
+            } catch (Exception e) {
+                log.error("关注流推送任务恢复异常", e);
+            }
+        }, recoveryIntervalSeconds, recoveryIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        recoveryExecutor.shutdownNow();
+        consumerExecutor.shutdownNow();
+    }
+
+    /**
+     * 登记推送任务，写入stream后立即返回
+     */
+    public void enqueue(Long authorId, Long blogId, long timestamp) {
+        Map<String, String> message = new HashMap<>(4);
+        message.put("authorId", authorId.toString());
+        message.put("blogId", blogId.toString());
+        message.put("ts", String.valueOf(timestamp));
+        stringRedisTemplate.opsForStream().add(STREAM_KEY, message);
+    }
+
+    private void consume(String consumerName) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                //一个任务可能要推送很多页，每次只取一条
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(CONSUMER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(1).block(Duration.ofSeconds(1)),
+                        StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed())
+                );
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    fanout(consumerName, record.getId(), record.getValue());
+                }
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                //没推完的任务留在pending-list里，由recoverPending认领后从进度处继续
+                log.error("关注流推送异常", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 执行一个推送任务：从进度处开始按主键分页读粉丝，每页一次pipeline，推完后确认消息、删除进度
+     */
+    private void fanout(String consumerName, RecordId recordId, Map<?, ?> value) {
+        Long authorId = Long.valueOf(value.get("authorId").toString());
+        String blogId = value.get("blogId").toString();
+        double timestamp = Double.parseDouble(value.get("ts").toString());
+        String id = recordId.getValue();
+
+        Object checkpoint = stringRedisTemplate.opsForHash().get(CHECKPOINT_KEY, id);
+        long lastId = checkpoint == null ? 0 : Long.parseLong(checkpoint.toString());
+        if (lastId > 0) {
+            resumedCounter.increment();
+            log.info("关注流推送任务 {}（blog {}）从粉丝记录id {} 继续", id, blogId, lastId);
+        }
+        byte[] streamKey = STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        byte[] checkpointKey = CHECKPOINT_KEY.getBytes(StandardCharsets.UTF_8);
+        byte[] field = id.getBytes(StandardCharsets.UTF_8);
+        byte[] member = blogId.getBytes(StandardCharsets.UTF_8);
+        long pushed = 0;
+        while (true) {
+            // 按(follow_user_id, id)索引做keyset分页，不用offset，越往后翻也不会变慢
+            List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                    .select("id", "user_id").eq("follow_user_id", authorId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + fanoutBatchSize));
+            if (follows.isEmpty()) {
+                break;
+            }
+            long pageLastId = follows.get(follows.size() - 1).getId();
+            byte[] progress = String.valueOf(pageLastId).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Follow follow : follows) {
+                    byte[] inboxKey = (RedisConstants.FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                    connection.zAdd(inboxKey, timestamp, member);
+                    //收件箱只保留最新的inboxMaxSize条，更早的读时从数据库补
+                    connection.zRemRange(inboxKey, 0, -inboxMaxSize - 1);
+                }
+                connection.hSet(checkpointKey, field, progress);
+                //认领给自己，重置空闲时间，推送中的大任务不会被其他节点当作宕机任务抢走
+                connection.streamCommands().xClaimJustId(streamKey, CONSUMER_GROUP, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(recordId));
+                return null;
+            });
+            lastId = pageLastId;
+            pushed += follows.size();
+            pushedCounter.increment(follows.size());
+            if (follows.size() < fanoutBatchSize) {
+                break;
+            }
+        }
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, recordId);
+        stringRedisTemplate.opsForHash().delete(CHECKPOINT_KEY, id);
+        completedCounter.increment();
+        log.debug("blog {} 已推送给作者 {} 的 {} 个粉丝", blogId, authorId, pushed);
+    }
+
+    /**
+     * 认领空闲过久的任务（原消费者宕机或处理异常），从进度处继续推送；投递次数超限的放弃
+     */
+    private void recoverPending() {
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(STREAM_KEY, CONSUMER_GROUP, Range.unbounded(), 100);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_KEY, CONSUMER_GROUP);
+        pendingJobs.set(summary == null ? 0 : summary.getTotalPendingMessages());
+        Duration minIdle = Duration.ofSeconds(minIdleSeconds);
+        String recoveryConsumer = CONSUMER_PREFIX + nodeId + "-recovery";
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                continue;
+            }
+            RecordId recordId = pendingMessage.getId();
+            //min-idle保证多个节点不会同时认领同一条
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                            CONSUMER_GROUP, recoveryConsumer, minIdle, recordId));
+            if (claimed == null || claimed.isEmpty()) {
+                //被别的节点先认领了；消息体已经不在stream里的直接确认掉，避免pending-list越积越多
+                if (stringRedisTemplate.opsForStream().range(STREAM_KEY, Range.closed(recordId.getValue(), recordId.getValue())).isEmpty()) {
+                    stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, recordId);
+                    stringRedisTemplate.opsForHash().delete(CHECKPOINT_KEY, recordId.getValue());
+                    log.warn("关注流推送任务 {} 的消息体已不存在，确认并移出pending-list", recordId);
+                }
+                continue;
+            }
+            MapRecord<String, String, String> record = claimed.get(0)
+                    .deserialize(StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8);
+            if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, CONSUMER_GROUP, recordId);
+                stringRedisTemplate.opsForHash().delete(CHECKPOINT_KEY, recordId.getValue());
+                abandonedCounter.increment();
+                log.error("关注流推送任务 {} 已投递 {} 次仍未完成，放弃：{}", recordId,
+                        pendingMessage.getTotalDeliveryCount(), record.getValue());
+                continue;
+            }
+            try {
+                fanout(recoveryConsumer, recordId, record.getValue());
+            } catch (Exception e) {
+                log.error("关注流推送任务 {} 第 {} 次重试失败", recordId, pendingMessage.getTotalDeliveryCount(), e);
+            }
+        }
+    }
+
+    /**
+     * 按MINID裁剪stream.feed.fanout：比最早的未确认任务和组内最后投递的任务都旧的记录已经推送完毕，可以删除
+     * 还没投递和还在推送中的任务不会被裁掉
+     */
+    private void trimStream() {
+        String lastDeliveredId = stringRedisTemplate.opsForStream().groups(STREAM_KEY).stream()
+                .filter(group -> CONSUMER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        if (lastDeliveredId == null) {
+            return;
+        }
+        RecordId minId = RecordId.of(lastDeliveredId);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_KEY, CONSUMER_GROUP);
+        if (summary != null && summary.getTotalPendingMessages() > 0 && isBefore(summary.minRecordId(), minId)) {
+            minId = summary.minRecordId();
+        }
+        // XTRIM key MINID ~ id，近似裁剪让redis按整个宏节点删除，开销更小
+        String trimId = minId.getValue();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                STREAM_KEY.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), trimId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static boolean isBefore(RecordId a, RecordId b) {
+        return a.getTimestamp() < b.getTimestamp()
+                || (a.getTimestamp().equals(b.getTimestamp()) && a.getSequence() < b.getSequence());
+    }
+}
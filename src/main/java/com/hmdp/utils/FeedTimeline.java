@@ -0,0 +1,247 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.FollowMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 关注流的推拉结合
+ * 每篇blog都写进作者自己的发件箱feed:outbox:{authorId}；粉丝数低于阈值的作者，再登记一个推送任务，
+ * 由FeedFanoutWorker分页读粉丝、pipeline写进每个粉丝的收件箱feed:{userId}（推）；粉丝数达到阈值的作者登记到feed:big:authors，不再推送，
+ * 粉丝读关注流时把自己收件箱和关注的大V发件箱合并（拉）
+ * 收件箱和发件箱都只保留最近的一部分，翻过缓存范围后从数据库补
+ * 作者一旦登记为大V就不再移除，否则之后发的blog只推送给粉丝，之前只在发件箱里的blog就从关注流里消失了
+ */
+@Component
+@Slf4j
+public class FeedTimeline {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final FollowMapper followMapper;
+    private final FeedFanoutWorker feedFanoutWorker;
+    private final BlogMapper blogMapper;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 粉丝数达到这个值的作者改为读时拉取
+     */
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private long pushThreshold;
+    /**
+     * 发件箱只保留最近的这么多篇
+     */
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private long outboxMaxSize;
+    /**
+     * 收件箱保留的最大条数，和FeedFanoutWorker裁剪用的是同一个配置
+     */
+    @Value("${hmdp.feed.inbox-max-size:500}")
+    private long inboxMaxSize;
+
+    private Counter coldReadCounter;
+
+    public FeedTimeline(StringRedisTemplate stringRedisTemplate, FollowMapper followMapper,
+                        FeedFanoutWorker feedFanoutWorker, BlogMapper blogMapper, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.followMapper = followMapper;
+        this.feedFanoutWorker = feedFanoutWorker;
+        this.blogMapper = blogMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        coldReadCounter = Counter.builder("feed.read.cold").register(meterRegistry);
+    }
+
+    /**
+     * 发布blog：写发件箱，普通作者登记推送任务，由FeedFanoutWorker在后台推送给粉丝
+     */
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        String outboxKey = RedisConstants.FEED_OUTBOX_KEY + authorId;
+        List<Object> results = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                operations.opsForZSet().add(outboxKey, blogId.toString(), timestamp);
+                operations.opsForZSet().removeRange(outboxKey, 0, -outboxMaxSize - 1);
+                operations.opsForSet().isMember(RedisConstants.FEED_BIG_AUTHORS_KEY, authorId.toString());
+                return null;
+            }
+        });
+        if (Boolean.TRUE.equals(results.get(2))) {
+            return;
+        }
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers != null && followers >= pushThreshold) {
+            stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIG_AUTHORS_KEY, authorId.toString());
+            log.info("作者 {} 粉丝数 {}，关注流改为读时拉取", authorId, followers);
+            return;
+        }
+        feedFanoutWorker.enqueue(authorId, blogId, timestamp);
+    }
+
+    /**
+     * 读关注流：ZREVRANGEBYSCORE key max 0 LIMIT offset count
+     * 没有关注大V时只读收件箱；否则收件箱和大V发件箱各取前offset+count条合并，按分数、member倒序排（和redis同分时的顺序一致），
+     * 跳过分数等于max的前offset条，保证和上一页的衔接
+     * 收件箱和发件箱都有长度上限：只有某个来源已经被裁剪过（长度到了上限）、并且redis里凑不满一页时，
+     * 才说明翻过了缓存的范围，再从数据库查关注作者的blog一起合并；短的关注流和最后一页不会查数据库
+     */
+    public List<ZSetOperations.TypedTuple<String>> read(Long userId, long max, int offset, int count) {
+        String inboxKey = RedisConstants.FEED_KEY + userId;
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet()
+                .intersect(RedisConstants.FOLLOW_KEY + userId, RedisConstants.FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors == null || bigAuthors.isEmpty()) {
+            //只有收件箱：按redis的offset直接取一页，顺便取长度判断是否裁剪过
+            List<Object> results = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object execute(RedisOperations operations) {
+                    operations.opsForZSet().reverseRangeByScoreWithScores(inboxKey, 0, max, offset, count);
+                    operations.opsForZSet().zCard(inboxKey);
+                    return null;
+                }
+            });
+            List<ZSetOperations.TypedTuple<String>> page = toTuples(results.get(0));
+            Long size = (Long) results.get(1);
+            if (page.size() == count || size == null || size < inboxMaxSize) {
+                return page;
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        keys.add(inboxKey);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> keys.add(RedisConstants.FEED_OUTBOX_KEY + authorId));
+        }
+        List<ZSetOperations.TypedTuple<String>> candidates = new ArrayList<>();
+        boolean truncated = rangeAll(keys, max, offset + count, candidates);
+        List<ZSetOperations.TypedTuple<String>> page = mergePage(candidates, max, offset, count);
+        if (page.size() == count || !truncated) {
+            return page;
+        }
+        candidates.addAll(queryCold(userId, max, offset + count));
+        return mergePage(candidates, max, offset, count);
+    }
+
+    /**
+     * 每个key取分数不大于max的前limit条，同时取长度，一次pipeline
+     * @param tuples 结果放在这里
+     * @return 是否有来源长度到了上限（更早的数据被裁剪掉了）
+     */
+    private boolean rangeAll(List<String> keys, long max, int limit, List<ZSetOperations.TypedTuple<String>> tuples) {
+        List<Object> results = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (String key : keys) {
+                    operations.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, 0, limit);
+                    operations.opsForZSet().zCard(key);
+                }
+                return null;
+            }
+        });
+        boolean truncated = false;
+        for (int i = 0; i < keys.size(); i++) {
+            tuples.addAll(toTuples(results.get(2 * i)));
+            Long size = (Long) results.get(2 * i + 1);
+            //第一个是收件箱，其余是发件箱
+            long limitSize = i == 0 ? inboxMaxSize : outboxMaxSize;
+            if (size != null && size >= limitSize) {
+                truncated = true;
+            }
+        }
+        return truncated;
+    }
+
+    private static List<ZSetOperations.TypedTuple<String>> toTuples(Object result) {
+        List<ZSetOperations.TypedTuple<String>> tuples = new ArrayList<>();
+        if (result != null) {
+            for (Object tuple : (Set<?>) result) {
+                @SuppressWarnings("unchecked")
+                ZSetOperations.TypedTuple<String> typed = (ZSetOperations.TypedTuple<String>) tuple;
+                tuples.add(typed);
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * 从数据库查关注的作者发布时间不晚于max的前limit篇blog，分数用create_time，和发布时写入redis的分数一致
+     */
+    private List<ZSetOperations.TypedTuple<String>> queryCold(Long userId, long max, int limit) {
+        Set<String> authors = stringRedisTemplate.opsForSet().members(RedisConstants.FOLLOW_KEY + userId);
+        if (authors == null || authors.isEmpty()) {
+            return new ArrayList<>();
+        }
+        LocalDateTime maxTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(max), ZoneId.systemDefault());
+        List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                .select("id", "create_time").in("user_id", authors).le("create_time", maxTime)
+                //同一秒内按id的字符串倒序，和redis里同分member的顺序、mergePage的排序一致，limit截断时不会漏掉或重复
+                .last("ORDER BY create_time DESC, CAST(id AS CHAR) DESC limit " + limit));
+        coldReadCounter.increment();
+        List<ZSetOperations.TypedTuple<String>> tuples = new ArrayList<>(blogs.size());
+        for (Blog blog : blogs) {
+            tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), (double) toScore(blog.getCreateTime())));
+        }
+        return tuples;
+    }
+
+    /**
+     * 合并多个来源：去重（推送过的blog收件箱、发件箱、数据库里都可能有），倒序排，跳过和上一页衔接处的offset条，取count条
+     */
+    private List<ZSetOperations.TypedTuple<String>> mergePage(List<ZSetOperations.TypedTuple<String>> candidates,
+                                                           long max, int offset, int count) {
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>(candidates);
+        merged.sort(Comparator.comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore())
+                .thenComparing(ZSetOperations.TypedTuple::getValue).reversed());
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : merged) {
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            if (skipped < offset && tuple.getScore() == max) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+            if (page.size() == count) {
+                break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * blog在关注流里的分数：发布时间的毫秒数，发布时去掉了毫秒，和数据库里的create_time一致
+     * 改成按秒之前写入收件箱的分数带毫秒，不做迁移：它们之间的顺序不受影响，只在翻过缓存范围、改查数据库的衔接处
+     * 可能重复出现一次；收件箱有长度上限，这些旧数据会随着新的推送被裁剪掉
+     */
+    public static long toScore(LocalDateTime createTime) {
+        return createTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
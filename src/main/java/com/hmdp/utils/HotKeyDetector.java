@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKeyDTO;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测
+ * CacheClient每次读缓存时按采样率记录一次，计数放在滑动窗口的count-min sketch里（窗口分成若干段，每段一个sketch，轮转时清空最老的一段），
+ * 另外维护一个有界的top-K，估算次数超过阈值的key标记为热点，LocalCache把热点key的值固定到一份短TTL的本地副本里，
+ * 大促时少数几个key的请求不再全部打到同一个redis分片上
+ */
+@Component
+@Slf4j
+public class HotKeyDetector {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    /**
+     * 采样率，只有这个比例的读会被计数，估算值再按采样率还原
+     */
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+    @Value("${hmdp.cache.hot-key.window-seconds:10}")
+    private long windowSeconds;
+    @Value("${hmdp.cache.hot-key.window-buckets:5}")
+    private int windowBuckets;
+    /**
+     * 一个窗口内估算访问次数达到这个值算热点
+     */
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+    @Value("${hmdp.cache.hot-key.top-k:100}")
+    private int topK;
+
+    private CountMinSketch[] buckets;
+    private volatile int current;
+
+    /**
+     * top-K候选：key -> 候选项，和按次数排序的topSet一起在topLock下修改
+     * 最小堆用TreeSet，按次数、key排序，取最小、删除、插入都是O(log K)
+     */
+    private final Map<String, Candidate> topKeys = new ConcurrentHashMap<>();
+    private final TreeSet<Candidate> topSet = new TreeSet<>(
+            Comparator.comparingLong((Candidate c) -> c.count).thenComparing(c -> c.key));
+    private final Object topLock = new Object();
+    /**
+     * top-K已满时的最小次数，不够格的key不用加锁直接跳过
+     */
+    private volatile long topMin;
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService rotateExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Hot-Key-Window");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HotKeyDetector(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        buckets = new CountMinSketch[windowBuckets];
+        for (int i = 0; i < windowBuckets; i++) {
+            buckets[i] = new CountMinSketch(4, 4096);
+        }
+        Gauge.builder("cache.hot.keys", hotKeys, Set::size).register(meterRegistry);
+        if (enabled) {
+            long bucketMillis = Math.max(1, TimeUnit.SECONDS.toMillis(windowSeconds) / windowBuckets);
+            rotateExecutor.scheduleAtFixedRate(this::rotate, bucketMillis, bucketMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rotateExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次读
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        buckets[current].increment(key);
+        long count = estimate(key);
+        offerTopK(key, count);
+        if (count >= threshold && hotKeys.add(key)) {
+            log.info("发现热点key：{}，窗口内估算访问 {} 次", key, count);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return enabled && hotKeys.contains(key);
+    }
+
+    /**
+     * 当前top-K，按访问次数倒序
+     */
+    public List<HotKeyDTO> topKeys() {
+        synchronized (topLock) {
+            return topSet.descendingSet().stream()
+                    .map(c -> new HotKeyDTO(c.key, c.count, hotKeys.contains(c.key)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * 整个窗口的估算值，按采样率还原
+     */
+    private long estimate(String key) {
+        long sum = 0;
+        for (CountMinSketch bucket : buckets) {
+            sum += bucket.estimate(key);
+        }
+        return (long) (sum / sampleRate);
+    }
+
+    private void offerTopK(String key, long count) {
+        if (topKeys.size() >= topK && count <= topMin && !topKeys.containsKey(key)) {
+            return;
+        }
+        synchronized (topLock) {
+            Candidate old = topKeys.get(key);
+            if (old != null) {
+                topSet.remove(old);
+            } else if (topKeys.size() >= topK) {
+                //满了，比最小的大才替换
+                Candidate min = topSet.first();
+                if (count <= min.count) {
+                    return;
+                }
+                topSet.pollFirst();
+                topKeys.remove(min.key);
+            }
+            putTopK(key, count);
+        }
+    }
+
+    private void putTopK(String key, long count) {
+        Candidate candidate = new Candidate(key, count);
+        topSet.add(candidate);
+        topKeys.put(key, candidate);
+        topMin = topKeys.size() >= topK ? topSet.first().count : 0;
+    }
+
+    /**
+     * 窗口前进一段：清空最老的一段，重新估算top-K，低于阈值的key不再是热点
+     */
+    private void rotate() {
+        try {
+            int next = (current + 1) % buckets.length;
+            buckets[next].clear();
+            current = next;
+            synchronized (topLock) {
+                List<String> keys = new ArrayList<>(topKeys.keySet());
+                topSet.clear();
+                topKeys.clear();
+                for (String key : keys) {
+                    long count = estimate(key);
+                    if (count > 0) {
+                        putTopK(key, count);
+                    }
+                    if (count < threshold && hotKeys.remove(key)) {
+                        log.info("热点key降温：{}", key);
+                    }
+                }
+                topMin = topKeys.size() >= topK ? topSet.first().count : 0;
+            }
+            //被挤出top-K的热点key也一并移除
+            hotKeys.removeIf(key -> !topKeys.containsKey(key));
+        } catch (Exception e) {
+            log.error("热点key窗口轮转失败", e);
+        }
+    }
+
+    private static final class Candidate {
+        private final String key;
+        private final long count;
+
+        private Candidate(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+}
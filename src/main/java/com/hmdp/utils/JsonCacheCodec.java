@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Hutool JSON编码，和原来直接用JSONUtil存进redis的格式完全一样，默认使用
+ * 解码时认得msgpack格式（见MsgpackFormat），从msgpack切回来时已经写进去的缓存照样能读
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "json", matchIfMissing = true)
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (MsgpackFormat.isBinary(bytes)) {
+            return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructType(clazz));
+        }
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), clazz);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementClass) {
+        if (MsgpackFormat.isBinary(bytes)) {
+            return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructCollectionType(List.class, elementClass));
+        }
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), elementClass);
+    }
+
+    /**
+     * 只解析一次外层对象，data直接转成目标类型，不再经过RedisData -> JSONObject -> bean
+     */
+    @Override
+    public <T> RedisData<T> decodeLogic(byte[] bytes, Class<T> clazz) {
+        if (MsgpackFormat.isBinary(bytes)) {
+            return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructParametricType(RedisData.class, clazz));
+        }
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setData(json.getBean("data", clazz));
+        return redisData;
+    }
+}
@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CacheClient前面的一级进程内缓存（Caffeine），存的是已经反序列化好的对象，命中时不再访问redis、不再解析json
+ * 任何节点写入或删除redis缓存时，通过redis发布订阅广播key，各节点删除自己的本地副本
+ * 按key前缀统计命中、未命中和淘汰次数，注册到micrometer
+ * 另有一份只放热点key的固定副本（HotKeyDetector判定），TTL更短，本地缓存关闭时也生效
+ */
+@Component
+@Slf4j
+public class LocalCache implements MessageListener {
+
+    private static final String CHANNEL = "cache:invalidate";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+    private final HotKeyDetector hotKeyDetector;
+
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long maximumSize;
+    @Value("${hmdp.cache.local.ttl-seconds:10}")
+    private long ttlSeconds;
+    @Value("${hmdp.cache.hot-key.pin-maximum-size:1000}")
+    private long pinMaximumSize;
+    @Value("${hmdp.cache.hot-key.pin-ttl-seconds:2}")
+    private long pinTtlSeconds;
+
+    private Cache<String, Entry> cache;
+    /**
+     * 热点key的固定副本
+     */
+    private Cache<String, Entry> pinned;
+
+    /**
+     * key前缀 -> 统计
+     */
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate,
+                      RedisMessageListenerContainer listenerContainer,
+                      MeterRegistry meterRegistry,
+                      HotKeyDetector hotKeyDetector) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new CappedExpiry(TimeUnit.SECONDS.toNanos(ttlSeconds)))
+                .removalListener((String key, Entry entry, RemovalCause cause) -> {
+                    if (entry != null && cause.wasEvicted()) {
+                        stats(entry.prefix).evictions.increment();
+                    }
+                })
+                .build();
+        pinned = Caffeine.newBuilder()
+                .maximumSize(pinMaximumSize)
+                .expireAfter(new CappedExpiry(TimeUnit.SECONDS.toNanos(pinTtlSeconds)))
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 查询本地缓存，先查热点副本；本地缓存未开启时只有热点副本可能命中
+     */
+    public <R> R get(String keyPrefix, String key, Class<R> clazz) {
+        Entry entry = pinned.getIfPresent(key);
+        if (entry == null) {
+            if (!enabled) {
+                return null;
+            }
+            entry = cache.getIfPresent(key);
+        }
+        PrefixStats prefixStats = stats(keyPrefix);
+        if (entry == null || !clazz.isInstance(entry.value)) {
+            prefixStats.misses.increment();
+            return null;
+        }
+        prefixStats.hits.increment();
+        return clazz.cast(entry.value);
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        put(keyPrefix, key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * 带截止时间的写入，本地副本最晚在expireAt（毫秒时间戳）失效，用于逻辑过期的数据：
+     * 逻辑过期之后不能再从本地命中，否则这个节点一直返回旧数据，也不会去redis触发重建
+     */
+    public void put(String keyPrefix, String key, Object value, long expireAt) {
+        if (value == null || expireAt <= System.currentTimeMillis()) {
+            return;
+        }
+        Entry entry = new Entry(keyPrefix, value, expireAt);
+        if (hotKeyDetector.isHot(key)) {
+            pinned.put(key, entry);
+        }
+        if (enabled) {
+            cache.put(key, entry);
+        }
+    }
+
+    /**
+     * 删除本地副本并通知其他节点删除
+     */
+    public void invalidate(String key) {
+        evict(key);
+        stringRedisTemplate.convertAndSend(CHANNEL, key);
+    }
+
+    /**
+     * 批量删除本地副本，通知消息用pipeline一次发出去
+     */
+    public void invalidateAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        keys.forEach(this::evict);
+        byte[] channel = CHANNEL.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evict(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void evict(String key) {
+        pinned.invalidate(key);
+        if (enabled) {
+            cache.invalidate(key);
+        }
+    }
+
+    private PrefixStats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, prefix -> {
+            PrefixStats prefixStats = new PrefixStats();
+            FunctionCounter.builder("cache.local.gets", prefixStats.hits, LongAdder::sum)
+                    .tag("prefix", prefix).tag("result", "hit").register(meterRegistry);
+            FunctionCounter.builder("cache.local.gets", prefixStats.misses, LongAdder::sum)
+                    .tag("prefix", prefix).tag("result", "miss").register(meterRegistry);
+            FunctionCounter.builder("cache.local.evictions", prefixStats.evictions, LongAdder::sum)
+                    .tag("prefix", prefix).register(meterRegistry);
+            return prefixStats;
+        });
+    }
+
+    private static final class Entry {
+        private final String prefix;
+        private final Object value;
+        /**
+         * 截止时间（毫秒时间戳），Long.MAX_VALUE表示只按TTL失效
+         */
+        private final long expireAt;
+
+        private Entry(String prefix, Object value, long expireAt) {
+            this.prefix = prefix;
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 写入后按TTL失效，条目有截止时间且更早时按截止时间失效；读取不延长有效期
+     */
+    private static final class CappedExpiry implements Expiry<String, Entry> {
+        private final long ttlNanos;
+
+        private CappedExpiry(long ttlNanos) {
+            this.ttlNanos = ttlNanos;
+        }
+
+        @Override
+        public long expireAfterCreate(String key, Entry entry, long currentTime) {
+            if (entry.expireAt == Long.MAX_VALUE) {
+                return ttlNanos;
+            }
+            long remaining = TimeUnit.MILLISECONDS.toNanos(Math.max(0, entry.expireAt - System.currentTimeMillis()));
+            return Math.min(ttlNanos, remaining);
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, entry, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    private static final class PrefixStats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+    }
+}
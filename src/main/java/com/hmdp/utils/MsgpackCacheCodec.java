@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * MessagePack二进制编码，超过阈值再用LZ4压缩，hmdp.cache.codec=msgpack时启用，格式见MsgpackFormat
+ * 第一个字节不是标记的按旧的JSON格式解析（JSON以{或[开头），切换过来之后旧缓存照样能读，逐步被新格式覆盖
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "msgpack")
+public class MsgpackCacheCodec implements CacheCodec {
+
+    /**
+     * 旧数据的兼容解析
+     */
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    /**
+     * msgpack编码后超过这个字节数才压缩，小对象压缩收益不大
+     */
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold;
+
+    @Override
+    public byte[] encode(Object value) {
+        return MsgpackFormat.write(value, compressThreshold);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (!MsgpackFormat.isBinary(bytes)) {
+            return jsonCodec.decode(bytes, clazz);
+        }
+        return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructType(clazz));
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementClass) {
+        if (!MsgpackFormat.isBinary(bytes)) {
+            return jsonCodec.decodeList(bytes, elementClass);
+        }
+        return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructCollectionType(List.class, elementClass));
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogic(byte[] bytes, Class<T> clazz) {
+        if (!MsgpackFormat.isBinary(bytes)) {
+            return jsonCodec.decodeLogic(bytes, clazz);
+        }
+        return MsgpackFormat.read(bytes, MsgpackFormat.typeFactory().constructParametricType(RedisData.class, clazz));
+    }
+}
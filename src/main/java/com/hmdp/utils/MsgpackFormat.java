@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 缓存里的msgpack格式：第一个字节是标记，0x01后面是msgpack，0x02后面是4字节原始长度 + LZ4压缩后的msgpack
+ * JSON以{或[开头，不会和标记冲突，两种编码实现解码时都按第一个字节分发，互相能读对方写的数据
+ */
+final class MsgpackFormat {
+
+    private static final byte MAGIC_MSGPACK = 0x01;
+    private static final byte MAGIC_MSGPACK_LZ4 = 0x02;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new MessagePackFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private MsgpackFormat() {
+    }
+
+    static TypeFactory typeFactory() {
+        return MAPPER.getTypeFactory();
+    }
+
+    /**
+     * 编码，msgpack后超过compressThreshold个字节再压缩
+     */
+    static byte[] write(Object value, int compressThreshold) {
+        byte[] packed;
+        try {
+            packed = MAPPER.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存序列化失败", e);
+        }
+        if (packed.length < compressThreshold) {
+            byte[] bytes = new byte[packed.length + 1];
+            bytes[0] = MAGIC_MSGPACK;
+            System.arraycopy(packed, 0, bytes, 1, packed.length);
+            return bytes;
+        }
+        byte[] compressed = new byte[5 + COMPRESSOR.maxCompressedLength(packed.length)];
+        compressed[0] = MAGIC_MSGPACK_LZ4;
+        ByteBuffer.wrap(compressed, 1, 4).putInt(packed.length);
+        int length = COMPRESSOR.compress(packed, 0, packed.length, compressed, 5, compressed.length - 5);
+        return Arrays.copyOf(compressed, 5 + length);
+    }
+
+    /**
+     * 是否是msgpack格式，不是的按JSON解析
+     */
+    static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] == MAGIC_MSGPACK || bytes[0] == MAGIC_MSGPACK_LZ4);
+    }
+
+    static <T> T read(byte[] bytes, JavaType type) {
+        try {
+            if (bytes[0] == MAGIC_MSGPACK) {
+                return MAPPER.readValue(bytes, 1, bytes.length - 1, type);
+            }
+            int length = ByteBuffer.wrap(bytes, 1, 4).getInt();
+            byte[] packed = DECOMPRESSOR.decompress(bytes, 5, length);
+            return MAPPER.readValue(packed, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存反序列化失败", e);
+        }
+    }
+}
@@ -10,16 +10,30 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
+    /**
+     * 店铺逻辑过期缓存的过期时间，单位分钟
+     */
+    public static final Long CACHE_SHOP_LOGIC_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String  CACHE_SHOP_TYPES_KEY= "cache:shop:types";
 
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final Long USER_SUMMARY_TTL = 30L;
+    public static final String USER_SUMMARY_KEY = "user:summary:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final String LOCK_ORDER_KEY = "lock:order";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big:authors";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
     public static final String FOLLOW_KEY = "follow:";
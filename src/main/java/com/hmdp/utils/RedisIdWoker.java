@@ -1,17 +1,31 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
+@Slf4j
 //为了解决redis实现全局唯一id的问题，这里提供一种方法来实现全局唯一id
 //id构成，六十四位二进制，前三十二位使用当前时间到初始时间的差值，后三十二位生成全局唯一的序列号，构成是前缀加上redis自己的自增id加上一个当前时间的时间戳
+//序列号采用号段模式：一次INCRBY step从redis领一段序列号，在内存里无锁发放，用到一定比例时异步预取下一段
 public class RedisIdWoker {
 
     //初始时间
@@ -20,26 +34,274 @@ public class RedisIdWoker {
     //序列号位移数量
     private static final long COUNT_BITS = 32L;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
     @Autowired
     private  StringRedisTemplate stringRedisTemplate;
+    /**
+     * hmdp.id.mode=snowflake时才有，否则走号段模式
+     */
+    @Autowired(required = false)
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    /**
+     * 号段初始步长
+     */
+    @Value("${hmdp.id.segment.initial-step:1000}")
+    private long initialStep;
+    /**
+     * 步长下限和上限，步长根据一段号用了多久自动翻倍或减半
+     */
+    @Value("${hmdp.id.segment.min-step:100}")
+    private long minStep;
+    @Value("${hmdp.id.segment.max-step:100000}")
+    private long maxStep;
+    /**
+     * 一段号期望用多久，用得比这快一倍就加大步长，慢一倍就减小步长
+     */
+    @Value("${hmdp.id.segment.target-seconds:60}")
+    private long targetSeconds;
+    /**
+     * 当前号段用掉这个比例后开始异步预取下一段
+     */
+    @Value("${hmdp.id.segment.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    /**
+     * 业务前缀 -> 号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * 当天的时钟信息，跨天时重新计算，避免每次都LocalDateTime.now()再格式化日期
+     */
+    private volatile DayClock dayClock;
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Id-Segment-Prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public long nexId(String keyPrefix){
         //生成时间戳
     //获取当前时间再减去初试时间
-        LocalDateTime now = LocalDateTime.now();
-        long seconds = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = seconds - BEGIN_TIMESTAMP;
+        long localSeconds = System.currentTimeMillis() / 1000 + currentDay().offsetSeconds;
+        DayClock clock = currentDay(localSeconds);
+        long timeStamp = localSeconds - BEGIN_TIMESTAMP;
+        //雪花模式，序列号在本地生成
+        if (snowflakeIdWorker != null) {
+            return snowflakeIdWorker.nextId(timeStamp);
+        }
 
         //生成序列号
 
-        //生成一个精确到天的日期，加入到key中，保证每天回滚序列号，防止二的六十四次方的序列号用完
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + data);
+        //序列号的key里带上日期，保证每天回滚序列号，防止二的六十四次方的序列号用完；序列号从本地号段里取
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(clock.date);
         //拼接并返回
 
+        return compose(timeStamp, count);
+
+    }
+
+    /**
+     * 是否是雪花模式：id在本地生成，不需要访问redis，调用方可以在进lua脚本之前就拿到订单id
+     */
+    public boolean isLocal() {
+        return snowflakeIdWorker != null;
+    }
+
+    /**
+     * id的高32位：当前时间到初始时间的秒数
+     */
+    public long timeStamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的key，按天区分
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now) {
+        return sequenceKey(keyPrefix, now.format(DATE_FORMATTER));
+    }
+
+    private static String sequenceKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    /**
+     * 时间戳和序列号拼成id。lua里的数字是double，拼不出64位的id，所以脚本里自增出来的序列号也要回到java里拼
+     */
+    public static long compose(long timeStamp, long count) {
         return timeStamp << COUNT_BITS | count;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    private DayClock currentDay() {
+        DayClock clock = dayClock;
+        if (clock == null) {
+            clock = newDayClock();
+            dayClock = clock;
+        }
+        return clock;
+    }
+
+    /**
+     * 本地时间的秒数超出当天范围就换一天，时区偏移也随之重算
+     */
+    private DayClock currentDay(long localSeconds) {
+        DayClock clock = currentDay();
+        if (localSeconds >= clock.dayStart && localSeconds < clock.dayEnd) {
+            return clock;
+        }
+        clock = newDayClock();
+        dayClock = clock;
+        return clock;
+    }
+
+    private static DayClock newDayClock() {
+        Instant now = Instant.now();
+        ZoneId zone = ZoneId.systemDefault();
+        int offsetSeconds = zone.getRules().getOffset(now).getTotalSeconds();
+        LocalDate today = LocalDateTime.ofInstant(now, zone).toLocalDate();
+        long dayStart = today.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        return new DayClock(today.format(DATE_FORMATTER), dayStart, dayStart + TimeUnit.DAYS.toSeconds(1), offsetSeconds);
+    }
+
+    private static final class DayClock {
+        private final String date;
+        /**
+         * 当天起止的本地时间秒数，和timeStamp(LocalDateTime)的口径一致
+         */
+        private final long dayStart;
+        private final long dayEnd;
+        private final int offsetSeconds;
+
+        private DayClock(String date, long dayStart, long dayEnd, int offsetSeconds) {
+            this.date = date;
+            this.dayStart = dayStart;
+            this.dayEnd = dayEnd;
+            this.offsetSeconds = offsetSeconds;
+        }
+    }
+
+    /**
+     * 一段序列号[start, end]，cursor是下一个要发出去的序列号
+     */
+    private static final class Segment {
+        private final String date;
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+        private final long fetchedAt;
+        private final AtomicLong cursor;
+
+        private Segment(String date, long start, long end, double prefetchRatio) {
+            this.date = date;
+            this.start = start;
+            this.end = end;
+            this.prefetchAt = start + (long) ((end - start + 1) * prefetchRatio);
+            this.fetchedAt = System.currentTimeMillis();
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段 + 预取好的下一段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private volatile long step = initialStep;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long nextCount(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || !segment.date.equals(date)) {
+                    switchSegment(segment, date);
+                    continue;
+                }
+                //热路径只有一次getAndIncrement，不加锁
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(date);
+                    }
+                    return count;
+                }
+                //当前号段用完，切到下一段
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date) {
+            if (current != exhausted) {
+                //其他线程已经切换过了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            if (prefetched != null && prefetched.date.equals(date)) {
+                current = prefetched;
+                return;
+            }
+            //预取还没回来（或者跨天了），同步领一段
+            current = fetch(date);
+        }
+
+        private void prefetch(String date) {
+            if (next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment segment = fetch(date);
+                        synchronized (this) {
+                            if (next == null) {
+                                next = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.error("预取id号段失败，keyPrefix:{}", keyPrefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                loading.set(false);
+            }
+        }
 
+        /**
+         * INCRBY step领一段号，步长按上一段的消耗速度调整
+         */
+        private Segment fetch(String date) {
+            Segment last = current;
+            long newStep = step;
+            if (last != null && last.date.equals(date)) {
+                long elapsed = System.currentTimeMillis() - last.fetchedAt;
+                long target = TimeUnit.SECONDS.toMillis(targetSeconds);
+                if (elapsed < target / 2) {
+                    newStep = Math.min(step * 2, maxStep);
+                } else if (elapsed > target * 2) {
+                    newStep = Math.max(step / 2, minStep);
+                }
+            }
+            step = newStep;
+            Long end = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, date), newStep);
+            return new Segment(date, end - newStep + 1, end, prefetchRatio);
+        }
     }
 
 //    //用来获取初始时间
@@ -1,22 +1,23 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class RefreshTokenInterceptor implements HandlerInterceptor {
-    private StringRedisTemplate stringRedisTemplate;
+    private AsyncRedisClient asyncRedisClient;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(AsyncRedisClient asyncRedisClient) {
+        this.asyncRedisClient = asyncRedisClient;
     }
 
     @Override
@@ -26,10 +27,21 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         //获取当前token
         String token = request.getHeader("Authorization");
 //        log.info("从Authorization头获取到的token：{}", token);
-        //从redis里获取当前用户
+        //没带token的请求不用查redis
+        if (StrUtil.isBlank(token)) {
+            return true;
+        }
+        //从redis里获取当前用户，同时刷新有效期：两条命令一起发出去，只等查询结果，key不存在时expire什么也不做
         String key = RedisConstants.LOGIN_USER_KEY + token;
 //        log.info("生成的Redis查询key：{}", key); // 新增：打印Redis的key
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        CompletableFuture<Map<String, String>> userFuture = asyncRedisClient.hGetAll(key);
+        asyncRedisClient.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES)
+                .whenComplete((ok, e) -> {
+                    if (e != null) {
+                        log.warn("刷新token有效期失败：{}", e.getMessage());
+                    }
+                });
+        Map<String, String> userMap = asyncRedisClient.join(userFuture);
 //        log.info("从Redis查询到的userMap是否为空：{}", userMap.isEmpty()); // 新增：判断userMap是否有数据
         //不存在用户
         if (userMap.isEmpty()) {
@@ -37,8 +49,6 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         }
         //将用户从hash转换成bean以后才能存threadlocal
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-        //刷新时间
-        stringRedisTemplate.expire(key,RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
         UserHolder.saveUser(userDTO);
         return true;
     }
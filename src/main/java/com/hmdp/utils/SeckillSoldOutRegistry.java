@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券本地售罄标记
+ * 脚本返回库存不足后在本地打上标记，并通过redis发布订阅通知其他节点，之后的请求直接在JVM里拒绝，不再申请订单id、不再执行lua脚本
+ * 补充库存时清除标记；标记本身带过期时间，万一错过了清除消息，最多过期后再查一次redis
+ */
+@Component
+@Slf4j
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String CHANNEL = "seckill:soldout";
+    private static final String MARK = "+";
+    private static final String CLEAR = "-";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 优惠券id -> 标记时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:60}")
+    private long soldOutTtlSeconds;
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                                  RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 是否已经售罄，过期的标记顺手删掉
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > TimeUnit.SECONDS.toMillis(soldOutTtlSeconds)) {
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.putIfAbsent(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(CHANNEL, MARK + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除标记并广播
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(CHANNEL, CLEAR + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.startsWith(MARK)) {
+                soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+            } else if (body.startsWith(CLEAR)) {
+                soldOut.remove(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法解析的售罄消息：{}", body);
+        }
+    }
+}
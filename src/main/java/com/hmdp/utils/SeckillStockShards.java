@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热点秒杀券的分片库存
+ * 一张券的库存拆成K个子key，每个子key和它的下单用户集合用同一个hash tag，集群下分散到不同槽位，不再把所有请求压在一个redis核上
+ * 用户按id哈希固定路由到一个分片，一人一单只查这个分片的集合；本分片卖完后再去兄弟分片扣库存
+ */
+@Component
+@Slf4j
+public class SeckillStockShards {
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_TAKE_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SHARD_TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 分片数在建券时就定死了，本地缓存起来，避免每次秒杀多一次GET
+     */
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    /**
+     * 没有分片信息的券，只缓存一小段时间：别的节点刚建的分片券可能还没写分片数，不能一直当成不分片
+     */
+    private Cache<Long, Boolean> unsharded;
+
+    @Value("${hmdp.seckill.shard-miss-ttl-seconds:5}")
+    private long shardMissTtlSeconds;
+    @Value("${hmdp.seckill.shard-miss-maximum-size:10000}")
+    private long shardMissMaximumSize;
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        unsharded = Caffeine.newBuilder()
+                .maximumSize(shardMissMaximumSize)
+                .expireAfterWrite(shardMissTtlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 建券时把库存平均拆到各分片，余数分给前面的分片
+     * @param voucherId 优惠券id
+     * @param stock 总库存
+     * @param shards 分片数
+     */
+    public void initStock(Long voucherId, int stock, int shards) {
+        int base = stock / shards;
+        int remainder = stock % shards;
+        for (int i = 0; i < shards; i++) {
+            int shardStock = base + (i < remainder ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+        unsharded.invalidate(voucherId);
+    }
+
+    /**
+     * 补充库存，和建券时一样平均分到各分片
+     * 各分片的key在不同槽位，不能放进一个脚本，每个分片一条INCRBY，用pipeline一次发出去；
+     * 分片之间不保证原子，没加上的分片只是暂时显得卖完了，下单时会去兄弟分片扣库存
+     */
+    public void addStock(Long voucherId, int count, int shards) {
+        int base = count / shards;
+        int remainder = count % shards;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int delta = base + (i < remainder ? 1 : 0);
+                if (delta > 0) {
+                    connection.incrBy(stockKey(voucherId, i).getBytes(StandardCharsets.UTF_8), delta);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询优惠券的库存分片数，没有分片信息的券按1处理，走原来的单key脚本
+     * 分片数一直缓存，没有分片信息的结果只缓存hmdp.seckill.shard-miss-ttl-seconds秒
+     */
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        if (unsharded.getIfPresent(voucherId) != null) {
+            return 1;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if (shards == null) {
+            unsharded.put(voucherId, Boolean.TRUE);
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardCounts.put(voucherId, count);
+        return count;
+    }
+
+    /**
+     * 分片模式的秒杀准入
+     * @return 0 抢到了，1 库存不足，2 重复下单，和seckill.lua的返回值保持一致
+     */
+    public int tryAcquire(Long voucherId, Long userId, int shards) {
+        int home = homeShard(userId, shards);
+        Long result = stringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)),
+                userId.toString()
+        );
+        int r = result.intValue();
+        if (r != 1) {
+            return r;
+        }
+        //本分片卖完了，从随机的一个兄弟分片开始依次尝试，避免所有溢出请求都压到同一个相邻分片
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (start + i) % shards;
+            if (shard == home) {
+                continue;
+            }
+            Long taken = stringRedisTemplate.execute(
+                    SHARD_TAKE_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, shard))
+            );
+            if (taken != null && taken == 0) {
+                return 0;
+            }
+        }
+        //所有分片都卖完了，释放脚本里占住的下单资格
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    private static int homeShard(Long userId, int shards) {
+        int h = userId.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards);
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
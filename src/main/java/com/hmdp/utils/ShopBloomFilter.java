@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 店铺id的布隆过滤器，查缓存之前先过一遍，不存在的id直接拒绝，不再往redis里写空值
+ * 启动时从tb_shop加载全部id，之后定时重建（店铺删除后位数组里的旧id只能靠重建清掉）
+ * 新增店铺时加入本地过滤器，并通过redis发布订阅通知其他节点
+ */
+@Component
+@Slf4j
+public class ShopBloomFilter implements MessageListener {
+
+    private static final String CHANNEL = "bloom:shop:add";
+    private static final int LOAD_BATCH_SIZE = 5000;
+
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${hmdp.bloom.shop.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.bloom.shop.expected-insertions:100000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.bloom.shop.rebuild-interval-minutes:60}")
+    private long rebuildIntervalMinutes;
+
+    /**
+     * 正在使用的过滤器，为null表示还没加载好，此时全部放行
+     */
+    private volatile BloomFilter filter;
+    /**
+     * 重建中的过滤器，重建期间新增的id两边都写，切换后不会丢
+     */
+    private volatile BloomFilter rebuilding;
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Shop-Bloom-Rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShopBloomFilter(ShopMapper shopMapper, StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer) {
+        this.shopMapper = shopMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        rebuild();
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuild,
+                rebuildIntervalMinutes, rebuildIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * 店铺id可能存在时返回true；返回false时一定不存在
+     */
+    public boolean mightContain(Long id) {
+        BloomFilter current = filter;
+        return current == null || id == null || current.mightContain(id);
+    }
+
+    /**
+     * 新增店铺后调用，加入本地过滤器并广播
+     */
+    public void add(Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(id);
+        stringRedisTemplate.convertAndSend(CHANNEL, id.toString());
+    }
+
+    /**
+     * 按主键分批读出全部店铺id，装进新的过滤器后整体替换
+     */
+    public synchronized void rebuild() {
+        try {
+            long total = shopMapper.selectCount(null).longValue();
+            BloomFilter next = new BloomFilter(Math.max(expectedInsertions, total * 2), fpp);
+            rebuilding = next;
+            long lastId = 0;
+            long loaded = 0;
+            while (true) {
+                List<Object> ids = shopMapper.selectObjs(new QueryWrapper<Shop>()
+                        .select("id").gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH_SIZE));
+                for (Object id : ids) {
+                    lastId = ((Number) id).longValue();
+                    next.put(lastId);
+                }
+                loaded += ids.size();
+                if (ids.size() < LOAD_BATCH_SIZE) {
+                    break;
+                }
+            }
+            filter = next;
+            log.info("店铺布隆过滤器重建完成，共 {} 个id", loaded);
+        } catch (Exception e) {
+            //重建失败继续用旧的过滤器
+            log.error("店铺布隆过滤器重建失败", e);
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    /**
+     * 先读rebuilding再读filter：重建结束时先切filter再清rebuilding，按这个顺序读不会两边都错过
+     */
+    private void addLocal(long id) {
+        BloomFilter next = rebuilding;
+        if (next != null) {
+            next.put(id);
+        }
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(id);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            addLocal(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无法解析的布隆过滤器消息：{}", body);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并（single-flight）
+ * 同一个key同时只有一个线程真正执行加载，其他线程共享它的CompletableFuture等结果，
+ * 缓存大面积未命中时一个节点对同一个key最多只有一次redis和数据库往返，分布式锁只需要在节点之间互斥
+ */
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inflight = calls.putIfAbsent(key, future);
+        if (inflight != null) {
+            //已经有线程在加载，等它的结果
+            try {
+                return (T) inflight.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            //加载结束就移除，之后的请求重新走缓存，不会一直拿到这次的结果
+            calls.remove(key, future);
+        }
+    }
+}
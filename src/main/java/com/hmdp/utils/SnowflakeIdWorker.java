@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花模式的id生成，hmdp.id.mode=snowflake时启用
+ * 启动时从redis租一个worker id（SET NX EX），之后靠心跳续期，发号完全在本地完成，没有网络开销
+ * id布局和号段模式兼容：高32位仍是秒级时间戳，低32位 = 1位雪花标记 + 10位worker id + 21位序列号
+ * 号段模式的序列号是每天从1开始的自增值，到不了2^31，所以两种模式生成的id不会重复，可以随时切换
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker {
+
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+    private static final long WORKER_ID_BITS = 10L;
+    private static final long SEQUENCE_BITS = 21L;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << 31;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('expire', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * worker id租约的有效期，心跳每1/3个有效期续一次
+     */
+    @Value("${hmdp.id.snowflake.lease-ttl-seconds:30}")
+    private long leaseTtlSeconds;
+
+    /**
+     * 租约的唯一标识，续期和释放时校验，防止误操作别的节点的租约
+     */
+    private final String leaseToken = UUID.randomUUID().toString(true);
+    private volatile long workerId = -1;
+    /**
+     * 租约有效期截止时间，超过这个时间还没续上就不能再发号，因为别的节点可能已经拿到了同一个worker id
+     */
+    private volatile long leaseValidUntil;
+
+    /**
+     * 上一个id用的秒数，序列号用完时会借用下一秒，所以可能比真实时钟超前
+     */
+    private long lastTimeStamp = -1;
+    /**
+     * 上一次调用时真实时钟的秒数，只拿它判断时钟回拨
+     */
+    private long lastObservedTimeStamp = -1;
+    private long sequence;
+
+    private Counter clockRollbackCounter;
+    private Counter renewFailureCounter;
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Id-Worker-Lease-Heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        acquireLease();
+        long period = Math.max(1, leaseTtlSeconds / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::renewLease, period, period, TimeUnit.SECONDS);
+
+        Gauge.builder("id.worker.lease.id", this, w -> w.workerId).register(meterRegistry);
+        Gauge.builder("id.worker.lease.remaining.seconds", this,
+                w -> Math.max(0, w.leaseValidUntil - System.currentTimeMillis()) / 1000.0).register(meterRegistry);
+        clockRollbackCounter = Counter.builder("id.worker.clock.rollback").register(meterRegistry);
+        renewFailureCounter = Counter.builder("id.worker.lease.renew.failures").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeatExecutor.shutdownNow();
+        if (workerId >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + workerId), leaseToken);
+        }
+    }
+
+    /**
+     * 生成id
+     * @param timeStamp 当前时间到初始时间的秒数，和号段模式同一口径
+     */
+    public synchronized long nextId(long timeStamp) {
+        if (System.currentTimeMillis() > leaseValidUntil) {
+            throw new IllegalStateException("worker id租约已过期，暂停发号");
+        }
+        if (timeStamp < lastObservedTimeStamp) {
+            clockRollbackCounter.increment();
+            log.warn("检测到时钟回拨 {} 秒，沿用上一次的时间戳发号", lastObservedTimeStamp - timeStamp);
+        }
+        lastObservedTimeStamp = timeStamp;
+        if (timeStamp < lastTimeStamp) {
+            //时钟回拨或者借用过下一秒：继续沿用上一次的秒数发号，序列号接着往下走，不会和之前的id重复
+            timeStamp = lastTimeStamp;
+        }
+        if (timeStamp == lastTimeStamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //这一秒的序列号用完了，借用下一秒
+                timeStamp = lastTimeStamp + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimeStamp = timeStamp;
+        return RedisIdWoker.compose(timeStamp, SNOWFLAKE_FLAG | workerId << SEQUENCE_BITS | sequence);
+    }
+
+    /**
+     * 从随机位置开始依次尝试SET NX EX，拿到第一个空闲的worker id
+     */
+    private void acquireLease() {
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            long requestAt = System.currentTimeMillis();
+            Boolean ok = stringRedisTemplate.opsForValue().setIfAbsent(
+                    WORKER_KEY_PREFIX + candidate, leaseToken, leaseTtlSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(ok)) {
+                leaseValidUntil = requestAt + TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+                workerId = candidate;
+                log.info("租用worker id {} 成功", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id可以租用");
+    }
+
+    private void renewLease() {
+        try {
+            long requestAt = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + workerId), leaseToken, String.valueOf(leaseTtlSeconds));
+            if (renewed != null && renewed == 1) {
+                leaseValidUntil = requestAt + TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+                return;
+            }
+            //租约已经丢了（过期后被别人拿走或被删除），换一个新的worker id，新旧id的序列空间互不重叠
+            renewFailureCounter.increment();
+            log.warn("worker id {} 的租约已丢失，重新租用", workerId);
+            synchronized (this) {
+                acquireLease();
+            }
+        } catch (Exception e) {
+            renewFailureCounter.increment();
+            log.error("worker id {} 续期失败", workerId, e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+---
+--- 读取逻辑过期缓存，同时判断是否需要重建
+--- 缓存存成hash：e 逻辑过期时间（毫秒），v 版本号，d 数据
+--- KEYS[1] 缓存key  KEYS[2] 重建锁key
+--- ARGV[1] 当前时间（毫秒）  ARGV[2] 锁的过期时间（秒）
+--- 返回：{} 不存在
+---      {1, 数据, 状态, 版本号, 逻辑过期时间}  状态 0 未过期，1 已过期且拿到了重建锁，2 已过期但别人在重建
+---      {2, 旧格式的整个字符串}   还没迁移的旧数据，交给java解析
+---
+
+local t = redis.call('type', KEYS[1])['ok']
+if (t == 'none') then
+    return {}
+end
+if (t ~= 'hash') then
+    return {2, redis.call('get', KEYS[1])}
+end
+local h = redis.call('hmget', KEYS[1], 'e', 'v', 'd')
+if (not h[3]) then
+    return {}
+end
+local state = 0
+if (tonumber(h[1] or 0) <= tonumber(ARGV[1])) then
+    if (redis.call('set', KEYS[2], '', 'NX', 'EX', ARGV[2])) then
+        state = 1
+    else
+        state = 2
+    end
+end
+return {1, h[3], state, h[2] or '', h[1] or '0'}
@@ -0,0 +1,20 @@
+---
+--- 写入逻辑过期缓存，版本号加一
+--- KEYS[1] 缓存key
+--- ARGV[1] 逻辑过期时间（毫秒）  ARGV[2] 数据  ARGV[3] 期望的版本号，空字符串表示不校验
+--- 返回新的版本号；版本号对不上（期间已经有人写过或删过）返回-1，不覆盖
+---
+
+local t = redis.call('type', KEYS[1])['ok']
+if (t == 'none' and ARGV[3] ~= '') then
+    -- 按版本重建期间key被删掉了（数据有更新），手里的是旧快照，不写回
+    return -1
+elseif (t ~= 'hash' and t ~= 'none') then
+    -- 旧格式的字符串，直接替换
+    redis.call('del', KEYS[1])
+elseif (t == 'hash' and ARGV[3] ~= '' and redis.call('hget', KEYS[1], 'v') ~= ARGV[3]) then
+    return -1
+end
+local v = redis.call('hincrby', KEYS[1], 'v', 1)
+redis.call('hset', KEYS[1], 'e', ARGV[1], 'd', ARGV[2])
+return v
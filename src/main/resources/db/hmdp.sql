@@ -32,7 +32,8 @@ CREATE TABLE `tb_blog`  (
   `comments` int(8) UNSIGNED NULL DEFAULT NULL COMMENT '评论数量',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_user_create_time`(`user_id`, `create_time`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 23 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -65,6 +66,19 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `table_name` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '发生变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '变更行的主键',
+  `op` char(1) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT 'I,新增；U,修改；D,删除',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '缓存变更发件箱，由触发器写入，CacheOutboxRelay消费后删除' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -74,7 +88,8 @@ CREATE TABLE `tb_follow`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_follow_user_id`(`follow_user_id`, `id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -1281,4 +1296,99 @@ CREATE TABLE `tb_voucher_order`  (
 -- Records of tb_voucher_order
 -- ----------------------------
 
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_outbox_insert`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_outbox_insert` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', NEW.id, 'I')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_outbox_update`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_outbox_update` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', NEW.id, 'U')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_outbox_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_outbox_delete` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', OLD.id, 'D')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_type_outbox_insert`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_type_outbox_insert` AFTER INSERT ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop_type', NEW.id, 'I')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_type_outbox_update`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_type_outbox_update` AFTER UPDATE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop_type', NEW.id, 'U')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_type_outbox_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_type_outbox_delete` AFTER DELETE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop_type', OLD.id, 'D')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_voucher_outbox_update`;
+delimiter ;;
+CREATE TRIGGER `tb_voucher_outbox_update` AFTER UPDATE ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_voucher', NEW.id, 'U')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_voucher_outbox_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_voucher_outbox_delete` AFTER DELETE ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_voucher', OLD.id, 'D')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_seckill_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_seckill_voucher_outbox_update`;
+delimiter ;;
+CREATE TRIGGER `tb_seckill_voucher_outbox_update` AFTER UPDATE ON `tb_seckill_voucher` FOR EACH ROW BEGIN
+  -- 下单扣库存不记录，只有补库存或者改了秒杀时间才需要清除售罄标记
+  IF NEW.stock > OLD.stock OR NEW.begin_time <> OLD.begin_time OR NEW.end_time <> OLD.end_time THEN
+    INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_seckill_voucher', NEW.voucher_id, 'U');
+  END IF;
+END
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_seckill_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_seckill_voucher_outbox_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_seckill_voucher_outbox_delete` AFTER DELETE ON `tb_seckill_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_seckill_voucher', OLD.voucher_id, 'D')
+;;
+delimiter ;
+
 SET FOREIGN_KEY_CHECKS = 1;
@@ -9,8 +9,12 @@
 local voucherId = ARGV[1]
 --1.2.用户id
 local userId = ARGV[2]
---1.3.订单id
-local orderId = ARGV[3]
+--1.3.订单序列号的key，icr:order:{date}，只有准入成功才自增，被拒绝的请求不再消耗序列号
+local seqKey = ARGV[3]
+--1.4.订单id的时间戳部分
+local timeStamp = ARGV[4]
+--1.5.雪花模式下本地生成好的订单id，号段模式为空串
+local orderId = ARGV[5]
 
 --2.数据key
 --2.1.库存key
@@ -22,17 +26,24 @@ local orderKey = 'seckill:order:' .. voucherId
 -- 3.1.判断库存是否充足 get stockKey
 if(tonumber(redis.call('get', stockKey)) <= 0) then
     -- 3.2.库存不足，返回1
-    return 1
+    return {1}
 end
 -- 3.2.判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
     -- 3.3.存在，说明是重复下单，返回2
-    return 2
+    return {2}
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
---3.6.发送消息到队列
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
+-- 3.6.雪花模式直接把订单id写入队列，不再自增序列号
+if (orderId ~= nil and orderId ~= '') then
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    return {0}
+end
+-- 3.7.号段模式生成订单序列号，和准入在同一次EVALSHA里完成
+local seq = redis.call('incr', seqKey)
+--3.8.发送消息到队列，lua的数字是double拼不出64位订单id，只写时间戳和序列号，由消费者拼成订单id
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'ts', timeStamp, 'seq', seq)
+return {0, seq}
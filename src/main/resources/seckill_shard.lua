@@ -0,0 +1,21 @@
+---
+--- 分片模式下的秒杀准入，只操作用户所在的本分片
+--- KEYS[1] 本分片库存key seckill:stock:{voucherId:shard}
+--- KEYS[2] 本分片下单用户集合 seckill:order:{voucherId:shard}
+--- ARGV[1] 用户id
+--- 两个key带相同的hash tag，集群下落在同一个槽位
+---
+
+-- 1.判断用户是否下单，一个用户永远路由到同一个分片，所以只查本分片的集合就能保证一人一单
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+-- 2.先占住下单资格，本分片没库存时由调用方去兄弟分片扣库存，都失败再移除
+redis.call('sadd', KEYS[2], ARGV[1])
+-- 3.本分片有库存，直接扣减
+if (tonumber(redis.call('get', KEYS[1]) or 0) > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+-- 4.本分片库存不足，返回1
+return 1
@@ -0,0 +1,10 @@
+---
+--- 分片模式下从兄弟分片扣减库存
+--- KEYS[1] 兄弟分片库存key seckill:stock:{voucherId:shard}
+---
+
+if (tonumber(redis.call('get', KEYS[1]) or 0) > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+return 1
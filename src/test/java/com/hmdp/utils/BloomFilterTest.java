@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    @Test
+    void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (long id = 1; id <= 10_000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 10_000; id++) {
+            assertTrue(filter.mightContain(id), "已加入的id必须命中: " + id);
+        }
+    }
+
+    @Test
+    void falsePositiveRateMatchesSizing() {
+        assertFalsePositiveRate(10_000, 0.01);
+        assertFalsePositiveRate(10_000, 0.001);
+        assertFalsePositiveRate(100_000, 0.03);
+    }
+
+    /**
+     * 装满预计数量后，用不在过滤器里的id测误判率，允许有两倍的波动
+     */
+    private static void assertFalsePositiveRate(int expectedInsertions, double fpp) {
+        BloomFilter filter = new BloomFilter(expectedInsertions, fpp);
+        //连续的id，和店铺id的分布一样
+        for (long id = 1; id <= expectedInsertions; id++) {
+            filter.put(id);
+        }
+        int probes = 200_000;
+        int falsePositives = 0;
+        for (long id = expectedInsertions + 1; id <= expectedInsertions + probes; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        assertTrue(rate <= fpp * 2, "误判率 " + rate + " 超出预期 " + fpp);
+    }
+}
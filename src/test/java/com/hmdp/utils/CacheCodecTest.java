@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 两种编码各自往返，并且互相能读对方写的数据
+ */
+class CacheCodecTest {
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    @Test
+    void roundTrip() {
+        for (CacheCodec codec : Arrays.asList(json, msgpack(1024), msgpack(0))) {
+            Shop shop = shop(1L);
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+        }
+    }
+
+    @Test
+    void listRoundTrip() {
+        List<Shop> shops = new ArrayList<>();
+        for (long id = 1; id <= 50; id++) {
+            shops.add(shop(id));
+        }
+        for (CacheCodec codec : Arrays.asList(json, msgpack(1024), msgpack(0))) {
+            assertEquals(shops, codec.decodeList(codec.encode(shops), Shop.class));
+        }
+    }
+
+    @Test
+    void logicRoundTrip() {
+        RedisData<Shop> data = new RedisData<>();
+        data.setExpireTime(LocalDateTime.of(2024, 5, 1, 12, 30, 15));
+        data.setData(shop(1L));
+        for (CacheCodec codec : Arrays.asList(json, msgpack(1024), msgpack(0))) {
+            assertEquals(data, codec.decodeLogic(codec.encode(data), Shop.class));
+        }
+    }
+
+    @Test
+    void codecsReadEachOther() {
+        Shop shop = shop(1L);
+        MsgpackCacheCodec plain = msgpack(1024);
+        MsgpackCacheCodec compressed = msgpack(0);
+        assertEquals(shop, plain.decode(json.encode(shop), Shop.class));
+        assertEquals(shop, json.decode(plain.encode(shop), Shop.class));
+        assertEquals(shop, json.decode(compressed.encode(shop), Shop.class));
+        assertEquals(Arrays.asList(shop), json.decodeList(compressed.encode(Arrays.asList(shop)), Shop.class));
+    }
+
+    private static MsgpackCacheCodec msgpack(int compressThreshold) {
+        MsgpackCacheCodec codec = new MsgpackCacheCodec();
+        ReflectionTestUtils.setField(codec, "compressThreshold", compressThreshold);
+        return codec;
+    }
+
+    private static Shop shop(Long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        return shop;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CountMinSketchTest {
+
+    @Test
+    void estimateNeverUnderCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 5000; i++) {
+            //key i出现 i%10+1 次
+            for (int j = 0; j <= i % 10; j++) {
+                sketch.increment("shop:" + i);
+            }
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(sketch.estimate("shop:" + i) >= i % 10 + 1);
+        }
+    }
+
+    @Test
+    void hotKeyStandsOut() {
+        CountMinSketch sketch = new CountMinSketch(4, 4096);
+        for (int i = 0; i < 10_000; i++) {
+            sketch.increment("shop:" + i);
+        }
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            last = sketch.increment("shop:hot");
+        }
+        assertTrue(last >= 1000);
+        assertTrue(sketch.estimate("shop:hot") > sketch.estimate("shop:1") * 10);
+    }
+
+    @Test
+    void halveAndClear() {
+        CountMinSketch sketch = new CountMinSketch(4, 64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("shop:1");
+        }
+        sketch.halve();
+        assertEquals(50, sketch.estimate("shop:1"));
+        sketch.clear();
+        assertEquals(0, sketch.estimate("shop:1"));
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 号段模式：redis用本地计数器模拟INCRBY
+ */
+class RedisIdWokerTest {
+
+    private static final long COUNT_MASK = (1L << 32) - 1;
+
+    private final AtomicLong counter = new AtomicLong();
+    private final AtomicInteger incrCalls = new AtomicInteger();
+    private RedisIdWoker idWoker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            incrCalls.incrementAndGet();
+            return counter.addAndGet(invocation.getArgument(1));
+        });
+        idWoker = new RedisIdWoker();
+        ReflectionTestUtils.setField(idWoker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(idWoker, "initialStep", 100L);
+        ReflectionTestUtils.setField(idWoker, "minStep", 100L);
+        ReflectionTestUtils.setField(idWoker, "maxStep", 100_000L);
+        ReflectionTestUtils.setField(idWoker, "targetSeconds", 60L);
+        ReflectionTestUtils.setField(idWoker, "prefetchRatio", 0.8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        idWoker.shutdown();
+    }
+
+    @Test
+    void sequencesAreContiguousWithinOneThread() {
+        long previous = 0;
+        for (int i = 0; i < 1000; i++) {
+            long count = idWoker.nexId("order") & COUNT_MASK;
+            if (previous != 0) {
+                //号段之间可能因为预取跳号，但不会回退
+                assertTrue(count > previous);
+            }
+            previous = count;
+        }
+        //一段号用得很快，步长会翻倍，1000个号只需要很少几次INCRBY
+        assertTrue(incrCalls.get() < 10, "INCRBY次数: " + incrCalls.get());
+    }
+
+    @Test
+    void concurrentIdsAreUnique() throws Exception {
+        int threads = 8;
+        int perThread = 5000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        ids.add(idWoker.nexId("order"));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            es.shutdownNow();
+        }
+        assertEquals(threads * perThread, ids.size());
+    }
+}
@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+    @Test
+    void concurrentCallsShareOneLoad() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        int threads = 8;
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            //第一个线程进入加载后卡住，其余线程都应该等它的结果
+            Future<String> first = es.submit(() -> singleFlight.execute("shop:1", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "shop";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            List<Future<String>> others = new ArrayList<>();
+            for (int i = 1; i < threads; i++) {
+                others.add(es.submit(() -> singleFlight.execute("shop:1", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+            }
+            //给其他线程时间挂到同一个future上
+            Thread.sleep(200);
+            release.countDown();
+            assertEquals("shop", first.get(5, TimeUnit.SECONDS));
+            for (Future<String> other : others) {
+                assertEquals("shop", other.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void nextCallLoadsAgain() {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(1, (int) singleFlight.execute("shop:1", loads::incrementAndGet));
+        assertEquals(2, (int) singleFlight.execute("shop:1", loads::incrementAndGet));
+    }
+
+    @Test
+    void failureIsRethrownAndNotCached() {
+        SingleFlight singleFlight = new SingleFlight();
+        assertThrows(IllegalStateException.class, () -> singleFlight.execute("shop:1", () -> {
+            throw new IllegalStateException("db down");
+        }));
+        assertEquals("shop", singleFlight.execute("shop:1", () -> "shop"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
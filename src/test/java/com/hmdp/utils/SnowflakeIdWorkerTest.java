@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SnowflakeIdWorkerTest {
+
+    private static final long SEQUENCE_SIZE = 1L << 21;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+        worker = new SnowflakeIdWorker(template, meterRegistry);
+        ReflectionTestUtils.setField(worker, "leaseTtlSeconds", 30L);
+        worker.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        worker.shutdown();
+    }
+
+    @Test
+    void borrowingNextSecondIsNotRollback() {
+        long now = 1000;
+        long previous = -1;
+        //一秒内发完全部序列号，再多发一些，后面的要借用下一秒
+        for (long i = 0; i < SEQUENCE_SIZE + 10; i++) {
+            long id = worker.nextId(now);
+            assertTrue(id > previous);
+            previous = id;
+        }
+        assertEquals(now + 1, previous >>> 32);
+        assertEquals(0, rollbacks());
+        //真实时钟走到借用的那一秒，id继续递增
+        long id = worker.nextId(now + 1);
+        assertTrue(id > previous);
+        assertEquals(0, rollbacks());
+    }
+
+    @Test
+    void realRollbackIsCountedOnce() {
+        long previous = worker.nextId(2000);
+        long id = worker.nextId(1995);
+        //回拨后沿用上一次的秒数
+        assertTrue(id > previous);
+        assertEquals(2000, id >>> 32);
+        assertEquals(1, rollbacks());
+        //时钟停在回拨后的位置，不再重复计数
+        previous = id;
+        id = worker.nextId(1995);
+        assertTrue(id > previous);
+        assertEquals(1, rollbacks());
+    }
+
+    private double rollbacks() {
+        return meterRegistry.counter("id.worker.clock.rollback").count();
+    }
+}